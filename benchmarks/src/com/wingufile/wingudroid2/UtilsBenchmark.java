@@ -0,0 +1,102 @@
+package com.wingufile.wingudroid2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.wingufile.wingudroid2.data.DataManager;
+
+/**
+ * The path and formatting helpers called for each row of a listing. Each
+ * invocation goes over a few typical inputs, the results are per input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilsBenchmark {
+
+    private static final String[] PATHS = {
+        "/", "/Photos", "/Photos/2013/", "/a/b/c/d/e/f.txt", "/Documents/report final.pdf"
+    };
+    private static final long[] SIZES = { 0, 100, 5000, 3000000, 7000000000L };
+    // 30 seconds, 3 hours, 3 days and 60 days ago
+    private static final long[] AGES = { 30 * 1000, 3 * 3600 * 1000, 3 * 86400000L, 60 * 86400000L };
+
+    private long[] times;
+
+    @Setup
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        times = new long[AGES.length];
+        for (int i = 0; i < AGES.length; i++) {
+            times[i] = now - AGES[i];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public int pathJoin() {
+        int n = 0;
+        for (String p : PATHS) {
+            n += Utils.pathJoin(p, "child", "file.jpg").length();
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public int getParentPath() {
+        int n = 0;
+        for (int i = 1; i < PATHS.length; i++) {
+            n += Utils.getParentPath(PATHS[i]).length();
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public int stripSlashes() {
+        int n = 0;
+        for (String p : PATHS) {
+            n += Utils.stripSlashes(p).length();
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public int constructFileName() {
+        int n = 0;
+        for (String p : PATHS) {
+            n += DataManager.constructFileName(p, "0123456789abcdef").length();
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public int readableFileSize() {
+        int n = 0;
+        for (long size : SIZES) {
+            n += Utils.readableFileSize(size).length();
+        }
+        return n;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public int translateCommitTime() {
+        int n = 0;
+        for (long t : times) {
+            n += Utils.translateCommitTime(t).length();
+        }
+        return n;
+    }
+}
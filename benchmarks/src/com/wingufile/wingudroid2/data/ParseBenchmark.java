@@ -0,0 +1,107 @@
+package com.wingufile.wingudroid2.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.wingufile.wingudroid2.Utils;
+
+/**
+ * JSON parsing of a large dir and of a long repo list, and the grouping of
+ * the repos for the repo list screen. In the package of the parsed classes,
+ * for their package-private fromJson().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParseBenchmark {
+
+    private static final int DIRENT_COUNT = 50000;
+    private static final int REPO_COUNT = 1000;
+
+    private String dirents;
+    private String repos;
+    private List<SeafRepo> parsedRepos;
+
+    @Setup
+    public void setUp() throws JSONException {
+        dirents = direntsJson(DIRENT_COUNT);
+        repos = reposJson(REPO_COUNT);
+        parsedRepos = parseRepos();
+    }
+
+    private static String direntsJson(int count) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject obj = new JSONObject();
+            boolean dir = i % 10 == 0;
+            obj.put("id", String.format(Locale.US, "%040x", i));
+            obj.put("type", dir ? "dir" : "file");
+            obj.put("name", dir ? "folder " + i : "IMG_" + i + ".jpg");
+            obj.put("mtime", 1370000000L + i);
+            if (!dir) {
+                obj.put("size", 1000L * i);
+            }
+            array.put(obj);
+        }
+        return array.toString();
+    }
+
+    private static String reposJson(int count) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject obj = new JSONObject();
+            obj.put("id", String.format(Locale.US, "%036x", i));
+            obj.put("name", "Library " + i);
+            obj.put("desc", "");
+            // a few dozen groups
+            obj.put("owner", i % 3 == 0 ? "group " + (i % 40) : "user@example.com");
+            obj.put("permission", "rw");
+            obj.put("mtime", 1370000000L + i);
+            obj.put("encrypted", false);
+            obj.put("root", String.format(Locale.US, "%040x", i));
+            obj.put("size", 1000L * i);
+            obj.put("type", i % 3 == 0 ? "grepo" : "repo");
+            array.put(obj);
+        }
+        return array.toString();
+    }
+
+    @Benchmark
+    public List<SeafDirent> parseDirents() throws JSONException {
+        JSONArray array = new JSONArray(dirents);
+        ArrayList<SeafDirent> list = new ArrayList<SeafDirent>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            list.add(SeafDirent.fromJson(array.getJSONObject(i)));
+        }
+        return list;
+    }
+
+    @Benchmark
+    public List<SeafRepo> parseRepos() throws JSONException {
+        JSONArray array = new JSONArray(repos);
+        ArrayList<SeafRepo> list = new ArrayList<SeafRepo>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            list.add(SeafRepo.fromJson(array.getJSONObject(i)));
+        }
+        return list;
+    }
+
+    @Benchmark
+    public TreeMap<String, List<SeafRepo>> groupRepos() {
+        return Utils.groupRepos(parsedRepos);
+    }
+}
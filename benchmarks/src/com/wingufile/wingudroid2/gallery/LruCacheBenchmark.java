@@ -0,0 +1,50 @@
+package com.wingufile.wingudroid2.gallery;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Lookups in the image cache of the picker, three out of four going to a
+ * small hot set and the others scanning all the keys
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LruCacheBenchmark {
+
+    private static final int KEYS = 1000;
+
+    private LruCache<Integer, Object> cache;
+    private Integer[] keys;
+
+    @Setup
+    public void setUp() {
+        cache = new LruCache<Integer, Object>(KEYS / 4);
+        keys = new Integer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = i % 4 == 0 ? i : (i * 7) % (KEYS / 8);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public int getOrPut() {
+        int hits = 0;
+        for (Integer key : keys) {
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            } else {
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
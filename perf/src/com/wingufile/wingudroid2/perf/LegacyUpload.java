@@ -0,0 +1,119 @@
+package com.wingufile.wingudroid2.perf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
+import com.wingufile.wingudroid2.BandwidthLimiter;
+
+/**
+ * Uploads a file the way SeafConnection did before it read the body from a
+ * file channel in large chunks, to measure that change against.
+ *
+ * HttpRequest copies the body through a buffer of its default size, and
+ * the stream only implements the single byte read(): every byte is a read
+ * of the unbuffered file, and the limiter and the cancellation check run
+ * on every KB.
+ */
+class LegacyUpload {
+
+    private static final String CRLF = "\r\n";
+    private static final String TWO_HYPENS = "--";
+    private static final String BOUNDARY = "----SeafileAndroidBound$_$";
+
+    /**
+     * The upload stream of SeafConnection before the change
+     */
+    private static class LegacyInputStream extends InputStream {
+        public static final int BUFFER_SIZE = 1024;
+
+        private static final long PROGRESS_UPDATE_INTERVAL = 1000;
+        private final BandwidthLimiter limiter = BandwidthLimiter.getUploadLimiter();
+        private final InputStream src;
+        private long bytesRead = 0;
+        private long nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
+
+        LegacyInputStream(File file) throws IOException {
+            src = new FileInputStream(file);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ret = src.read();
+            if (ret != -1) {
+                ++bytesRead;
+                if (bytesRead % BUFFER_SIZE == 0) {
+                    limiter.acquire(BUFFER_SIZE);
+                    checkMonitor();
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        public void close() throws IOException {
+            src.close();
+        }
+
+        private void checkMonitor() throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IOException("cancelled");
+            }
+            if (System.currentTimeMillis() > nextUpdate) {
+                nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
+            }
+        }
+    }
+
+    /**
+     * @return the upload link of a repo, to upload several files with
+     */
+    static String getUploadLink(String server, String repoID) throws IOException {
+        try {
+            HttpRequest req = HttpRequest.get(server + "api2/repos/" + repoID + "/upload-link/")
+                                .header("Authorization", "Token " + MockSeafServer.TOKEN);
+            if (req.code() != 200) {
+                throw new IOException("upload link: " + req.code());
+            }
+            return req.body().replace("\"", "");
+        } catch (HttpRequestException e) {
+            throw e.getCause();
+        }
+    }
+
+    static void upload(String link, String dir, File file) throws IOException {
+        byte[] dirParam = (TWO_HYPENS + BOUNDARY + CRLF
+                           + "Content-Disposition: form-data; name=\"parent_dir\"" + CRLF
+                           + CRLF
+                           + dir + CRLF).getBytes("UTF-8");
+        byte[] fileHeader = (TWO_HYPENS + BOUNDARY + CRLF
+                             + "Content-Disposition: form-data; name=\"file\";filename=\""
+                             + file.getName() + "\"" + CRLF
+                             + "Content-Type: text/plain" + CRLF
+                             + CRLF).getBytes("UTF-8");
+        String end = TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF;
+        long totalLen = dirParam.length + fileHeader.length + file.length() + 2 + end.length();
+
+        try {
+            HttpRequest req = HttpRequest.post(link).connectTimeout(15000);
+            req.contentLength((int)totalLen);
+            req.header("Connection", "close");
+            req.header("Cache-Control", "no-cache");
+            req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
+            req.send(dirParam);
+            req.send(fileHeader);
+            req.send(new LegacyInputStream(file));
+            req.send(CRLF);
+            req.send(end);
+            if (req.code() != 200) {
+                throw new IOException("upload: " + req.code());
+            }
+            req.body();
+        } catch (HttpRequestException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package com.wingufile.wingudroid2.perf;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * A minimal Seafile server running in the app process, on localhost, for
+ * measuring the client without a real server.
+ *
+ * It implements the calls used by SeafConnection: auth-token, repos, dir
+ * (with the oid header), file download links, upload and update links, and
+ * the httpserver side of downloads and multipart uploads. The tree of each
+ * repo is generated from the path, so any depth can be listed.
+ *
+ * Latency, bandwidth and a failure rate can be set to mimic a network.
+ */
+public class MockSeafServer {
+    private static final String DEBUG_TAG = "MockSeafServer";
+
+    public static final String TOKEN = "0123456789abcdef0123456789abcdef01234567";
+    private static final String CRLF = "\r\n";
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    // Network simulation
+    public volatile long latencyMillis = 0;
+    // bytes per second in each direction, 0 for no limit
+    public volatile long bandwidth = 0;
+    // probability for a request to fail with a 500
+    public volatile double failureRate = 0;
+
+    // Generated content
+    public volatile int repoCount = 10;
+    public volatile int dirsPerDir = 5;
+    public volatile int filesPerDir = 20;
+    public volatile int maxDepth = 4;
+
+    // Statistics
+    public final AtomicLong requests = new AtomicLong();
+    public final AtomicLong bytesReceived = new AtomicLong();
+    public final AtomicLong bytesSent = new AtomicLong();
+    public final AtomicLong filesUploaded = new AtomicLong();
+    public final AtomicLong uploadRequests = new AtomicLong();
+    // The ids of the dirs listed, which the client may have cached
+    public final Set<String> dirIDs = Collections.synchronizedSet(new HashSet<String>());
+
+    private final Random random = new Random();
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+
+    /**
+     * Start listening on a free port of the loopback interface
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        running = true;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, DEBUG_TAG);
+        acceptThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @return the server url in the form used by Account, with a trailing slash
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    Log.d(DEBUG_TAG, "accept failed: " + e.getMessage());
+                }
+                return;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }).start();
+        }
+    }
+
+    private static class Request {
+        String method;
+        String path;
+        Map<String, String> params = new HashMap<String, String>();
+        Map<String, String> headers = new HashMap<String, String>();
+        long contentLength;
+    }
+
+    private static class Response {
+        int code = 200;
+        String reason = "OK";
+        Map<String, String> headers = new HashMap<String, String>();
+        byte[] body = new byte[0];
+        // generated body of this size, for file downloads
+        long generatedLength = -1;
+
+        static Response error(int code, String reason) {
+            Response resp = new Response();
+            resp.code = code;
+            resp.reason = reason;
+            return resp;
+        }
+
+        void setBody(String s) {
+            try {
+                body = s.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // not possible
+            }
+        }
+    }
+
+    /**
+     * Serve the requests of a connection, one after the other, until the
+     * client closes it
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (running) {
+                Request req = readRequestHead(in);
+                if (req == null) {
+                    break;
+                }
+                requests.incrementAndGet();
+
+                Response resp;
+                if (random.nextDouble() < failureRate) {
+                    skip(in, req.contentLength);
+                    resp = Response.error(500, "Injected failure");
+                } else {
+                    resp = handle(req, in);
+                }
+
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                writeResponse(out, resp);
+                if ("close".equalsIgnoreCase(req.headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // connection closed by the client
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("UTF-8");
+    }
+
+    private static Request readRequestHead(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null || line.length() == 0) {
+            return null;
+        }
+
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return null;
+        }
+
+        Request req = new Request();
+        req.method = parts[0];
+        String target = parts[1];
+        int q = target.indexOf('?');
+        req.path = q == -1 ? target : target.substring(0, q);
+        if (q != -1) {
+            parseParams(target.substring(q + 1), req.params);
+        }
+
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                req.headers.put(line.substring(0, colon).trim().toLowerCase(),
+                                line.substring(colon + 1).trim());
+            }
+        }
+
+        String length = req.headers.get("content-length");
+        req.contentLength = length != null ? Long.parseLong(length) : 0;
+        return req;
+    }
+
+    private static void parseParams(String query, Map<String, String> params)
+                                        throws UnsupportedEncodingException {
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                           URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+    }
+
+    private byte[] readBody(InputStream in, long length) throws IOException, InterruptedException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long left = length;
+        long start = System.currentTimeMillis();
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, left));
+            if (read == -1) {
+                throw new IOException("body too short");
+            }
+            body.write(buffer, 0, read);
+            left -= read;
+            throttle(length - left, start);
+        }
+        bytesReceived.addAndGet(length);
+        return body.toByteArray();
+    }
+
+    /**
+     * Read and drop a request body, counting the files of a multipart body
+     * without keeping it in memory
+     *
+     * @return the number of "file" parts
+     */
+    private int skip(InputStream in, long length) throws IOException, InterruptedException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        byte[] marker = "filename=\"".getBytes("UTF-8");
+        int matched = 0;
+        int files = 0;
+        long left = length;
+        long start = System.currentTimeMillis();
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, left));
+            if (read == -1) {
+                throw new IOException("body too short");
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == marker[matched]) {
+                    if (++matched == marker.length) {
+                        files++;
+                        matched = 0;
+                    }
+                } else {
+                    matched = buffer[i] == marker[0] ? 1 : 0;
+                }
+            }
+            left -= read;
+            throttle(length - left, start);
+        }
+        bytesReceived.addAndGet(length);
+        return files;
+    }
+
+    /**
+     * Sleep so that the bytes transferred since start do not exceed the
+     * bandwidth
+     */
+    private void throttle(long bytes, long start) throws InterruptedException {
+        long bw = bandwidth;
+        if (bw <= 0) {
+            return;
+        }
+        long due = start + bytes * 1000 / bw;
+        long now = System.currentTimeMillis();
+        if (due > now) {
+            Thread.sleep(due - now);
+        }
+    }
+
+    private void writeResponse(OutputStream out, Response resp) throws IOException,
+                                                                      InterruptedException {
+        long length = resp.generatedLength >= 0 ? resp.generatedLength : resp.body.length;
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(resp.code).append(" ").append(resp.reason).append(CRLF);
+        for (Map.Entry<String, String> entry : resp.headers.entrySet()) {
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append(CRLF);
+        }
+        head.append("Content-Length: ").append(length).append(CRLF);
+        head.append(CRLF);
+        out.write(head.toString().getBytes("UTF-8"));
+
+        long start = System.currentTimeMillis();
+        if (resp.generatedLength >= 0) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            random.nextBytes(chunk);
+            long sent = 0;
+            while (sent < length) {
+                int n = (int)Math.min(chunk.length, length - sent);
+                out.write(chunk, 0, n);
+                sent += n;
+                throttle(sent, start);
+            }
+        } else {
+            for (int off = 0; off < resp.body.length; off += CHUNK_SIZE) {
+                int n = Math.min(CHUNK_SIZE, resp.body.length - off);
+                out.write(resp.body, off, n);
+                throttle(off + n, start);
+            }
+        }
+        out.flush();
+        bytesSent.addAndGet(length);
+    }
+
+    private Response handle(Request req, InputStream in) throws IOException, InterruptedException {
+        String path = req.path;
+
+        // httpserver
+        if (path.startsWith("/files/")) {
+            return handleFileDownload(req);
+        }
+        if (path.startsWith("/upload-api/") || path.startsWith("/update-api/")) {
+            return handleUpload(req, in);
+        }
+
+        // web API
+        if (path.equals("/api2/auth-token/")) {
+            readBody(in, req.contentLength);
+            Response resp = new Response();
+            resp.setBody("{\"token\": \"" + TOKEN + "\"}");
+            return resp;
+        }
+
+        skip(in, req.contentLength);
+        if (!("Token " + TOKEN).equals(req.headers.get("authorization"))) {
+            return Response.error(401, "Invalid token");
+        }
+
+        try {
+            if (path.equals("/api2/repos/")) {
+                return handleRepos(req);
+            }
+
+            // /api2/repos/<id>/<op>/
+            String[] parts = path.split("/");
+            if (parts.length == 5 && parts[1].equals("api2") && parts[2].equals("repos")) {
+                String repoID = parts[3];
+                String op = parts[4];
+                if (op.equals("dir")) {
+                    return handleDir(req, repoID);
+                } else if (op.equals("file")) {
+                    return handleFileLink(req, repoID);
+                } else if (op.equals("upload-link")) {
+                    return handleUploadLink("upload-api");
+                } else if (op.equals("update-link")) {
+                    return handleUploadLink("update-api");
+                }
+            }
+        } catch (JSONException e) {
+            return Response.error(500, "Internal error");
+        }
+
+        return Response.error(404, "Not found");
+    }
+
+    private static String fakeID(String seed) {
+        StringBuilder sb = new StringBuilder(40);
+        int h = seed.hashCode();
+        while (sb.length() < 40) {
+            sb.append(String.format("%08x", h));
+            h = h * 31 + 17;
+        }
+        return sb.substring(0, 40);
+    }
+
+    private Response handleRepos(Request req) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < repoCount; i++) {
+            JSONObject repo = new JSONObject();
+            repo.put("id", "repo-" + i);
+            repo.put("name", "Library " + i);
+            repo.put("desc", "");
+            repo.put("owner", "bench@example.com");
+            repo.put("permission", "rw");
+            repo.put("mtime", 1370000000L);
+            repo.put("encrypted", false);
+            repo.put("root", fakeID("repo-" + i + "/"));
+            repo.put("size", 0);
+            repo.put("type", i % 3 == 0 ? "grepo" : "repo");
+            array.put(repo);
+        }
+
+        String content = array.toString();
+        String etag = "\"" + fakeID(content) + "\"";
+        if (etag.equals(req.headers.get("if-none-match"))) {
+            Response resp = Response.error(304, "Not Modified");
+            resp.headers.put("ETag", etag);
+            return resp;
+        }
+
+        Response resp = new Response();
+        resp.headers.put("ETag", etag);
+        resp.setBody(content);
+        return resp;
+    }
+
+    private static int depthOf(String path) {
+        int depth = 0;
+        for (String part : path.split("/")) {
+            if (part.length() > 0) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    private Response handleDir(Request req, String repoID) throws JSONException {
+        String path = req.params.get("p");
+        if (path == null) {
+            return Response.error(400, "Path is missing");
+        }
+
+        String dirID = fakeID(repoID + path);
+        dirIDs.add(dirID);
+        Response resp = new Response();
+        resp.headers.put("oid", dirID);
+        if (dirID.equals(req.params.get("oid"))) {
+            // the client cache is up to date
+            return resp;
+        }
+
+        JSONArray array = new JSONArray();
+        String prefix = path.endsWith("/") ? path : path + "/";
+        if (depthOf(path) < maxDepth) {
+            for (int i = 0; i < dirsPerDir; i++) {
+                JSONObject dirent = new JSONObject();
+                dirent.put("id", fakeID(repoID + prefix + "dir" + i));
+                dirent.put("type", "dir");
+                dirent.put("name", "dir" + i);
+                dirent.put("mtime", 1370000000L);
+                array.put(dirent);
+            }
+        }
+        for (int i = 0; i < filesPerDir; i++) {
+            JSONObject dirent = new JSONObject();
+            dirent.put("id", fakeID(repoID + prefix + "file" + i));
+            dirent.put("type", "file");
+            dirent.put("name", "file" + i + ".txt");
+            dirent.put("size", 1024 * (i + 1));
+            dirent.put("mtime", 1370000000L);
+            array.put(dirent);
+        }
+        resp.setBody(array.toString());
+        return resp;
+    }
+
+    /**
+     * The size of a downloaded file is given by its name: "<size>.bin", or
+     * 1 KB for other names
+     */
+    private static long sizeOf(String name) {
+        if (name.endsWith(".bin")) {
+            try {
+                return Long.parseLong(name.substring(0, name.length() - 4));
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        return 1024;
+    }
+
+    private Response handleFileLink(Request req, String repoID) {
+        String path = req.params.get("p");
+        if (path == null) {
+            return Response.error(400, "Path is missing");
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+
+        Response resp = new Response();
+        resp.headers.put("oid", fakeID(repoID + path));
+        resp.setBody("\"" + getUrl() + "files/" + fakeID(path) + "/" + name + "\"");
+        return resp;
+    }
+
+    private Response handleFileDownload(Request req) {
+        String name = req.path.substring(req.path.lastIndexOf('/') + 1);
+        Response resp = new Response();
+        resp.generatedLength = sizeOf(name);
+        return resp;
+    }
+
+    private Response handleUploadLink(String api) {
+        Response resp = new Response();
+        resp.setBody("\"" + getUrl() + api + "/" + fakeID(String.valueOf(random.nextLong())) + "\"");
+        return resp;
+    }
+
+    private Response handleUpload(Request req, InputStream in) throws IOException,
+                                                                     InterruptedException {
+        int files = skip(in, req.contentLength);
+        filesUploaded.addAndGet(files);
+        uploadRequests.incrementAndGet();
+
+        Response resp = new Response();
+        if ("1".equals(req.params.get("ret-json"))) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < files; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append("{\"name\": \"file").append(i).append("\", \"id\": \"")
+                    .append(fakeID(String.valueOf(random.nextLong()))).append("\"}");
+            }
+            sb.append("]");
+            resp.setBody(sb.toString());
+        } else {
+            resp.setBody(fakeID(String.valueOf(random.nextLong())));
+        }
+        return resp;
+    }
+}
@@ -0,0 +1,457 @@
+package com.wingufile.wingudroid2.perf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.wingufile.wingudroid2.BandwidthLimiter;
+import com.wingufile.wingudroid2.SeadroidApplication;
+import com.wingufile.wingudroid2.SeafConnection;
+import com.wingufile.wingudroid2.SeafException;
+import com.wingufile.wingudroid2.TransferManager;
+import com.wingufile.wingudroid2.TransferManager.TransferListener;
+import com.wingufile.wingudroid2.TransferMetrics;
+import com.wingufile.wingudroid2.TransferPolicy;
+import com.wingufile.wingudroid2.Utils;
+import com.wingufile.wingudroid2.account.Account;
+import com.wingufile.wingudroid2.data.DataManager;
+import com.wingufile.wingudroid2.data.DatabaseHelper;
+import com.wingufile.wingudroid2.data.SeafCachedFile;
+import com.wingufile.wingudroid2.data.DataManager.ProgressMonitor;
+import com.wingufile.wingudroid2.data.DirTreeWalker;
+
+/**
+ * End to end benchmarks of SeafConnection and DataManager against a
+ * {@link MockSeafServer}. Run in the process of the app by
+ * {@link PerfHarnessTest}.
+ *
+ * Reports listing latency, the effect of the dirent and repo caches, tree
+ * walks, and upload and download throughput for several file sizes and
+ * numbers of parallel transfers. The uploads are also run through the old
+ * upload stream of {@link LegacyUpload}, for comparison, and small files
+ * are added one by one to a TransferManager to count the requests their
+ * batches take.
+ *
+ * The test runs in a process of the app started for it and killed
+ * afterwards, so the transfer metrics and the in-memory caches of the run
+ * go with it. The files it leaves are deleted at the end: the cached repo
+ * list and dir listings, and the local copies of the uploaded files.
+ */
+public class PerfHarness {
+
+    private static final long[] FILE_SIZES = { 64 * 1024, 1024 * 1024, 8 * 1024 * 1024 };
+    private static final int[] CONCURRENCY = { 1, 4 };
+    private static final long[] LATENCIES = { 0, 50 };
+    private static final int LISTINGS = 20;
+    private static final int FILES_PER_WORKER = 4;
+    private static final int BATCH_FILES = 10;
+    private static final long BATCH_FILE_SIZE = 64 * 1024;
+    private static final String BATCH_REPO_NAME = "Library 0";
+
+    private final MockSeafServer server = new MockSeafServer();
+    private final StringBuilder report = new StringBuilder();
+    private Account account;
+
+    private static final ProgressMonitor NULL_MONITOR = new ProgressMonitor() {
+        @Override
+        public void onProgressNotify(long total) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public TransferMetrics.Transfer getMetrics() {
+            return null;
+        }
+    };
+
+    /**
+     * Run all the benchmarks. This takes a while, call it from a background
+     * thread.
+     *
+     * @return a human readable report
+     */
+    public String run() {
+        try {
+            server.start();
+            account = new Account(server.getUrl(), "bench@example.com", "bench", null);
+
+            report.append("Mock server ").append(server.getUrl()).append("\n");
+            report.append("Bandwidth limits: up ").append(BandwidthLimiter.getUploadLimitKBps())
+                .append(" KB/s, down ").append(BandwidthLimiter.getDownloadLimitKBps())
+                .append(" KB/s (0 = none)\n\n");
+
+            SeafConnection sc = new SeafConnection(account);
+            sc.doLogin();
+
+            benchListing(sc);
+            benchCaches();
+            benchTreeWalk();
+            benchUploads(sc);
+            benchDownloads(sc);
+            benchBatching();
+        } catch (Exception e) {
+            report.append("\nFAILED: ").append(e.toString()).append("\n");
+        } finally {
+            server.stop();
+            clearCaches();
+        }
+
+        report.append("\nServer: ").append(server.requests.get()).append(" requests, ")
+            .append(server.filesUploaded.get()).append(" files uploaded in ")
+            .append(server.uploadRequests.get()).append(" requests, ")
+            .append(Utils.readableFileSize(server.bytesReceived.get())).append(" received, ")
+            .append(Utils.readableFileSize(server.bytesSent.get())).append(" sent\n");
+        return report.toString();
+    }
+
+    private void clearCaches() {
+        try {
+            if (account != null) {
+                // named as by DataManager.getFileForReposCache()
+                String name = "repos-" + (account.server + account.email).hashCode();
+                String dir = DataManager.getExternalCacheDirectory();
+                new File(dir, name + ".dat").delete();
+                new File(dir, name + ".meta").delete();
+                clearLocalFiles();
+            }
+            synchronized (server.dirIDs) {
+                for (String dirID : server.dirIDs) {
+                    DataManager.getFileForDirentsCache(dirID).delete();
+                }
+            }
+        } catch (RuntimeException e) {
+            // external storage not available, nothing was written there
+        }
+    }
+
+    /**
+     * Delete the local copies of the files uploaded by the batching run,
+     * which TransferManager keeps as the uploads of any account do
+     */
+    private void clearLocalFiles() {
+        DataManager dataManager = new DataManager(account);
+        for (SeafCachedFile cf : dataManager.getCachedFiles()) {
+            dataManager.removeCachedFile(cf);
+        }
+        // the dir of the bench account, holding the dirs of its repos
+        File repoDir = dataManager.getLocalRepoFile(BATCH_REPO_NAME, "repo-0", "/");
+        deleteRecursively(repoDir.getParentFile());
+        // the table of the repo dirs, as created by DatabaseHelper
+        SQLiteDatabase db = DatabaseHelper.getDatabaseHelper().getWritableDatabase();
+        db.delete("RepoDir", "account=?", new String[] { account.getSignature() });
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void benchListing(SeafConnection sc) throws SeafException {
+        report.append("Dir listing, no cache (").append(LISTINGS).append(" calls)\n");
+        for (long latency : LATENCIES) {
+            server.latencyMillis = latency;
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < LISTINGS; i++) {
+                sc.getDirents("repo-" + (i % server.repoCount), "/dir" + (i % server.dirsPerDir), null);
+            }
+            long avg = (System.currentTimeMillis() - start) / LISTINGS;
+            report.append("  latency ").append(latency).append(" ms: ")
+                .append(avg).append(" ms per call\n");
+        }
+        server.latencyMillis = 0;
+    }
+
+    private void benchCaches() throws SeafException {
+        server.latencyMillis = 50;
+        DataManager dataManager = new DataManager(account);
+
+        report.append("\nCaches (latency 50 ms)\n");
+        long t0 = System.currentTimeMillis();
+        dataManager.getDirents("repo-0", "/dir1", true);
+        long t1 = System.currentTimeMillis();
+        dataManager.getDirents("repo-0", "/dir1", false);
+        long t2 = System.currentTimeMillis();
+        dataManager.getDirents("repo-0", "/dir1", true);
+        long t3 = System.currentTimeMillis();
+        report.append("  dir, from server: ").append(t1 - t0).append(" ms\n");
+        report.append("  dir, fresh cache: ").append(t2 - t1).append(" ms\n");
+        report.append("  dir, revalidated by oid: ").append(t3 - t2).append(" ms\n");
+
+        long before = server.bytesSent.get();
+        t0 = System.currentTimeMillis();
+        dataManager.getRepos(true);
+        t1 = System.currentTimeMillis();
+        long firstBytes = server.bytesSent.get() - before;
+        dataManager.getRepos(true);
+        t2 = System.currentTimeMillis();
+        long secondBytes = server.bytesSent.get() - before - firstBytes;
+        report.append("  repos, full: ").append(t1 - t0).append(" ms, ")
+            .append(Utils.readableFileSize(firstBytes)).append("\n");
+        report.append("  repos, revalidated: ").append(t2 - t1).append(" ms, ")
+            .append(Utils.readableFileSize(secondBytes)).append("\n");
+        server.latencyMillis = 0;
+    }
+
+    private void benchTreeWalk() throws SeafException {
+        server.latencyMillis = 20;
+        report.append("\nTree walk (latency 20 ms)\n");
+        for (int window : new int[] { 1, 4 }) {
+            // a repo not listed yet, so the listings come from the server
+            String repoID = "repo-" + (server.repoCount - window);
+            DataManager dataManager = new DataManager(account);
+            long start = System.currentTimeMillis();
+            DirTreeWalker walker = dataManager.walkDir(repoID, "/", window);
+            int dirs = 0;
+            while (walker.next() != null) {
+                dirs++;
+            }
+            report.append("  window ").append(window).append(": ").append(dirs).append(" dirs in ")
+                .append(System.currentTimeMillis() - start).append(" ms\n");
+        }
+        server.latencyMillis = 0;
+    }
+
+    private static File createFile(File dir, String name, long size) throws IOException {
+        File file = new File(dir, name);
+        byte[] buffer = new byte[64 * 1024];
+        new Random().nextBytes(buffer);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            long left = size;
+            while (left > 0) {
+                int n = (int)Math.min(buffer.length, left);
+                out.write(buffer, 0, n);
+                left -= n;
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Run the same job in several threads and return the elapsed time
+     */
+    private static long runParallel(int threads, final Job job) throws Exception {
+        final List<Exception> errors = new ArrayList<Exception>();
+        Thread[] workers = new Thread[threads];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            final int worker = i;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.run(worker);
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private interface Job {
+        void run(int worker) throws Exception;
+    }
+
+    private static String throughput(long bytes, long millis) {
+        return Utils.readableFileSize(millis == 0 ? bytes : bytes * 1000 / millis) + "/s";
+    }
+
+    private void benchUploads(final SeafConnection sc) throws Exception {
+        report.append("\nUploads\n");
+        File dir = new File(SeadroidApplication.getAppContext().getCacheDir(), "bench");
+        dir.mkdirs();
+        try {
+            for (long size : FILE_SIZES) {
+                final List<File> files = new ArrayList<File>();
+                int maxFiles = CONCURRENCY[CONCURRENCY.length - 1] * FILES_PER_WORKER;
+                for (int i = 0; i < maxFiles; i++) {
+                    files.add(createFile(dir, "up" + i + ".bin", size));
+                }
+
+                for (final int threads : CONCURRENCY) {
+                    long millis = runParallel(threads, new Job() {
+                        @Override
+                        public void run(int worker) throws Exception {
+                            for (int i = 0; i < FILES_PER_WORKER; i++) {
+                                File f = files.get(worker * FILES_PER_WORKER + i);
+                                sc.uploadFile("repo-0", "/", f.getPath(), NULL_MONITOR);
+                            }
+                        }
+                    });
+                    long bytes = size * threads * FILES_PER_WORKER;
+                    report.append("  ").append(Utils.readableFileSize(size)).append(" x ")
+                        .append(threads * FILES_PER_WORKER).append(", ").append(threads)
+                        .append(" parallel: ").append(throughput(bytes, millis)).append("\n");
+                }
+
+                // the same files one at a time through the old 1 KB stream
+                String link = LegacyUpload.getUploadLink(server.getUrl(), "repo-0");
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < FILES_PER_WORKER; i++) {
+                    LegacyUpload.upload(link, "/", files.get(i));
+                }
+                long millis = System.currentTimeMillis() - start;
+                report.append("  ").append(Utils.readableFileSize(size)).append(" x ")
+                    .append(FILES_PER_WORKER).append(", 1 parallel, old 1 KB stream: ")
+                    .append(throughput(size * FILES_PER_WORKER, millis)).append("\n");
+
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+        } finally {
+            dir.delete();
+        }
+    }
+
+    private void benchDownloads(final SeafConnection sc) throws Exception {
+        report.append("\nDownloads\n");
+        final File dir = new File(SeadroidApplication.getAppContext().getCacheDir(), "bench");
+        dir.mkdirs();
+        try {
+            for (final long size : FILE_SIZES) {
+                for (final int threads : CONCURRENCY) {
+                    long millis = runParallel(threads, new Job() {
+                        @Override
+                        public void run(int worker) throws Exception {
+                            for (int i = 0; i < FILES_PER_WORKER; i++) {
+                                // the mock server sends <size> bytes for "<size>.bin"
+                                String path = "/w" + worker + "-" + i + "/" + size + ".bin";
+                                File local = new File(dir, "down" + worker + "-" + i);
+                                sc.getFile("repo-0", path, local.getPath(), null, NULL_MONITOR);
+                                local.delete();
+                            }
+                        }
+                    });
+                    long bytes = size * threads * FILES_PER_WORKER;
+                    report.append("  ").append(Utils.readableFileSize(size)).append(" x ")
+                        .append(threads * FILES_PER_WORKER).append(", ").append(threads)
+                        .append(" parallel: ").append(throughput(bytes, millis)).append("\n");
+                }
+            }
+        } finally {
+            dir.delete();
+        }
+    }
+
+    /**
+     * Add uploads of small files to the same dir one at a time, as the
+     * camera upload or a share from another app do, and count the requests
+     * which upload them
+     */
+    private void benchBatching() throws Exception {
+        report.append("\nBatching (").append(BATCH_FILES).append(" uploads of ")
+            .append(Utils.readableFileSize(BATCH_FILE_SIZE)).append(" added one by one)\n");
+        if (!TransferPolicy.getPolicy(account).allowsBulkTransfer(BATCH_FILE_SIZE)) {
+            report.append("  skipped, the transfer policy does not allow uploads now\n");
+            return;
+        }
+
+        File dir = new File(SeadroidApplication.getAppContext().getCacheDir(), "bench");
+        dir.mkdirs();
+        final List<File> files = new ArrayList<File>();
+        try {
+            for (int i = 0; i < BATCH_FILES; i++) {
+                files.add(createFile(dir, "batch" + i + ".bin", BATCH_FILE_SIZE));
+            }
+
+            final CountDownLatch done = new CountDownLatch(BATCH_FILES);
+            final AtomicInteger failed = new AtomicInteger();
+            final TransferListener listener = new TransferListener() {
+                @Override
+                public void onFileUploadProgress(int taskID) {
+                }
+
+                @Override
+                public void onFileUploaded(int taskID) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onFileUploadCancelled(int taskID) {
+                    failed.incrementAndGet();
+                    done.countDown();
+                }
+
+                @Override
+                public void onFileUploadFailed(int taskID) {
+                    failed.incrementAndGet();
+                    done.countDown();
+                }
+
+                @Override
+                public void onFileDownloadProgress(int taskID) {
+                }
+
+                @Override
+                public void onFileDownloaded(int taskID) {
+                }
+
+                @Override
+                public void onFileDownloadFailed(int taskID) {
+                }
+            };
+
+            long requestsBefore = server.uploadRequests.get();
+            long start = System.currentTimeMillis();
+            // TransferManager runs its tasks from the main thread
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    TransferManager txManager = new TransferManager();
+                    txManager.setListener(listener);
+                    for (File f : files) {
+                        txManager.addUploadTask(account, "repo-0", BATCH_REPO_NAME, "/",
+                                                f.getPath(), false);
+                    }
+                }
+            });
+            if (!done.await(60, TimeUnit.SECONDS)) {
+                throw new IOException("batched uploads timed out");
+            }
+            if (failed.get() > 0) {
+                throw new IOException(failed.get() + " batched uploads failed");
+            }
+            report.append("  ").append(server.uploadRequests.get() - requestsBefore)
+                .append(" upload requests in ").append(System.currentTimeMillis() - start)
+                .append(" ms\n");
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.wingufile.wingudroid2.perf;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Runs the {@link PerfHarness} in the process of the app. From perf/:
+ *
+ *     ant debug install test
+ *
+ * The report is written to the log under the tag PerfHarness. The test
+ * fails if a benchmark could not run to the end.
+ */
+public class PerfHarnessTest extends InstrumentationTestCase {
+
+    private static final String DEBUG_TAG = "PerfHarness";
+
+    public void testRun() {
+        String report = new PerfHarness().run();
+        for (String line : report.split("\n")) {
+            Log.i(DEBUG_TAG, line);
+        }
+        assertFalse(report, report.contains("FAILED"));
+    }
+}
@@ -0,0 +1,157 @@
+package com.wingufile.wingudroid2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Token bucket rate limiter for background transfers.
+ *
+ * There is one limiter for uploads and one for downloads, shared by all the
+ * transfers of the TransferService. The limits are set by the user and
+ * apply to all accounts.
+ *
+ * In adaptive mode, while interactive API requests (like listing a
+ * directory) are in flight, the uploads are slowed down to
+ * {@link #BACKOFF_RATE} so that those requests do not stall behind them.
+ * Downloads are not: a download is a file the user has just opened and is
+ * waiting for, as interactive as the listing.
+ */
+public class BandwidthLimiter {
+
+    private static final String PREFS_NAME = "bandwidth";
+    private static final String KEY_UPLOAD_LIMIT = "upload_limit_kbps";
+    private static final String KEY_DOWNLOAD_LIMIT = "download_limit_kbps";
+    private static final String KEY_ADAPTIVE = "adaptive";
+
+    // Rate of bulk transfers while interactive requests are waiting, in bytes/s
+    private static final long BACKOFF_RATE = 32 * 1024;
+
+    private static BandwidthLimiter uploadLimiter = null;
+    private static BandwidthLimiter downloadLimiter = null;
+    private static volatile boolean adaptive = false;
+    private static final AtomicInteger interactiveRequests = new AtomicInteger();
+
+    // bytes per second, 0 for no limit
+    private volatile long rate;
+    // slowed down by interactive requests in adaptive mode
+    private final boolean backsOff;
+    private double tokens;
+    private long lastRefill;
+
+    private BandwidthLimiter(long rate, boolean backsOff) {
+        this.rate = rate;
+        this.backsOff = backsOff;
+        this.tokens = rate;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    private static SharedPreferences getPrefs() {
+        return SeadroidApplication.getAppContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static synchronized void init() {
+        if (uploadLimiter != null) {
+            return;
+        }
+        SharedPreferences prefs = getPrefs();
+        uploadLimiter = new BandwidthLimiter(prefs.getInt(KEY_UPLOAD_LIMIT, 0) * 1024L, true);
+        downloadLimiter = new BandwidthLimiter(prefs.getInt(KEY_DOWNLOAD_LIMIT, 0) * 1024L, false);
+        adaptive = prefs.getBoolean(KEY_ADAPTIVE, false);
+    }
+
+    public static BandwidthLimiter getUploadLimiter() {
+        init();
+        return uploadLimiter;
+    }
+
+    public static BandwidthLimiter getDownloadLimiter() {
+        init();
+        return downloadLimiter;
+    }
+
+    public static int getUploadLimitKBps() {
+        return (int)(getUploadLimiter().rate / 1024);
+    }
+
+    public static int getDownloadLimitKBps() {
+        return (int)(getDownloadLimiter().rate / 1024);
+    }
+
+    public static boolean isAdaptive() {
+        init();
+        return adaptive;
+    }
+
+    /**
+     * Save the user settings and apply them to the running transfers.
+     *
+     * @param uploadKBps upload limit in KB/s, 0 for no limit
+     * @param downloadKBps download limit in KB/s, 0 for no limit
+     */
+    public static void saveSettings(int uploadKBps, int downloadKBps, boolean adaptiveMode) {
+        SharedPreferences.Editor editor = getPrefs().edit();
+        editor.putInt(KEY_UPLOAD_LIMIT, uploadKBps);
+        editor.putInt(KEY_DOWNLOAD_LIMIT, downloadKBps);
+        editor.putBoolean(KEY_ADAPTIVE, adaptiveMode);
+        editor.commit();
+
+        getUploadLimiter().rate = uploadKBps * 1024L;
+        getDownloadLimiter().rate = downloadKBps * 1024L;
+        adaptive = adaptiveMode;
+    }
+
+    /**
+     * Called by SeafConnection around interactive API requests
+     */
+    public static void onInteractiveRequestStarted() {
+        interactiveRequests.incrementAndGet();
+    }
+
+    public static void onInteractiveRequestFinished() {
+        interactiveRequests.decrementAndGet();
+    }
+
+    private long getEffectiveRate() {
+        long r = rate;
+        if (backsOff && adaptive && interactiveRequests.get() > 0) {
+            if (r == 0 || r > BACKOFF_RATE) {
+                r = BACKOFF_RATE;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Take tokens for the given number of bytes, sleeping if the bucket is
+     * in debt. The bucket holds at most one second worth of tokens.
+     *
+     * If the thread is interrupted while sleeping, the interrupt flag is
+     * restored and the method returns early, so the caller can detect the
+     * cancellation.
+     */
+    public void acquire(int bytes) {
+        long r = getEffectiveRate();
+        if (r <= 0) {
+            return;
+        }
+
+        long sleepMillis;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(r, tokens + (now - lastRefill) * r / 1000.0);
+            lastRefill = now;
+            tokens -= bytes;
+            sleepMillis = tokens < 0 ? (long)(-tokens * 1000 / r) : 0;
+        }
+
+        if (sleepMillis > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
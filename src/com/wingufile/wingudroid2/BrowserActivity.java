@@ -136,6 +136,16 @@ public class BrowserActivity extends SherlockFragmentActivity
         }
     }
 
+    private void addUploadTasks(String repoID, String repoName, String targetDir, List<String> localFilePaths) {
+        if (txService != null) {
+            txService.addUploadTasks(account, repoID, repoName, targetDir, localFilePaths);
+        } else {
+            for (String path : localFilePaths) {
+                pendingUploads.add(new PendingUploadInfo(repoID, repoName, targetDir, path, false));
+            }
+        }
+    }
+
     private ArrayList<PendingUploadInfo> pendingUploads = new ArrayList<PendingUploadInfo>();
 
     public TransferService getTransferService() {
@@ -403,6 +413,7 @@ public class BrowserActivity extends SherlockFragmentActivity
         MenuItem menuRefresh = menu.findItem(R.id.refresh);
         MenuItem menuNewDir = menu.findItem(R.id.newdir);
         MenuItem menuNewFile = menu.findItem(R.id.newfile);
+        MenuItem menuCameraUpload = menu.findItem(R.id.camera_upload_here);
 
         if (currentTab.equals(LIBRARY_TAB)) {
             menuUpload.setVisible(true);
@@ -427,13 +438,16 @@ public class BrowserActivity extends SherlockFragmentActivity
             if (navContext.inRepo() && hasRepoWritePermission()) {
                 menuNewDir.setVisible(true);
                 menuNewFile.setVisible(true);
+                menuCameraUpload.setVisible(true);
             } else {
                 menuNewDir.setVisible(false);
                 menuNewFile.setVisible(false);
+                menuCameraUpload.setVisible(false);
             }
         } else {
             menuNewDir.setVisible(false);
             menuNewFile.setVisible(false);
+            menuCameraUpload.setVisible(false);
         }
 
         return true;
@@ -477,10 +491,34 @@ public class BrowserActivity extends SherlockFragmentActivity
         case R.id.newfile:
             showNewFileDialog();
             return true;
+        case R.id.camera_upload_here:
+            enableCameraUpload();
+            return true;
+        case R.id.transfer_settings:
+            Intent settingsIntent = new Intent(this, TransferSettingsActivity.class);
+            settingsIntent.putExtra("account", account);
+            startActivity(settingsIntent);
+            return true;
+        case R.id.diagnostics:
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Upload the photos taken from now on to the current dir
+     */
+    private void enableCameraUpload() {
+        CameraUpload.getSettings(account).enable(navContext.getRepoID(),
+                                                 navContext.getRepoName(),
+                                                 navContext.getDirPath());
+        Intent intent = new Intent(this, TransferService.class);
+        intent.setAction(TransferService.ACTION_CAMERA_UPLOAD_CHANGED);
+        startService(intent);
+        showToast(R.string.camera_upload_enabled);
+    }
+
     private void showNewDirDialog() {
         if (!hasRepoWritePermission()) {
             showToast(R.string.library_read_only);
@@ -683,10 +721,8 @@ public class BrowserActivity extends SherlockFragmentActivity
                 ArrayList<String> paths = data.getStringArrayListExtra("photos");
                 if (paths == null)
                     return;
-                for (String path : paths) {
-                    addUploadTask(navContext.getRepoID(),
-                        navContext.getRepoName(), navContext.getDirPath(), path);
-                }
+                addUploadTasks(navContext.getRepoID(),
+                    navContext.getRepoName(), navContext.getDirPath(), paths);
             }
         }
 
@@ -0,0 +1,341 @@
+package com.wingufile.wingudroid2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.MediaStore.Images;
+
+import com.wingufile.wingudroid2.account.Account;
+import com.wingufile.wingudroid2.gallery.ImageManager;
+
+/**
+ * Automatic upload of the new photos of the camera roll to a dir of a
+ * library, set per account.
+ *
+ * The last photo queued for upload is remembered as a watermark of
+ * (date_added, _id), so each scan only asks MediaStore for the photos added
+ * after it, never for the whole roll. Photos added in the same second are
+ * ordered by their id. Enabling the upload puts the watermark at the
+ * current time: the photos taken before are not uploaded.
+ *
+ * The photos behind the watermark which are not uploaded yet are kept in a
+ * pending list, saved together with the watermark. A photo leaves the list
+ * once uploaded, or if the user cancels its upload. The uploads which were
+ * interrupted or failed are queued again when the service starts, so
+ * advancing the watermark never loses a photo. A photo the server keeps
+ * rejecting is given up after {@link #MAX_UPLOAD_FAILURES} failed uploads,
+ * network errors aside, so it does not stay pending forever.
+ *
+ * The settings, the watermark and the pending list are stored in a shared
+ * preference file of the account.
+ */
+public class CameraUpload {
+
+    private static final String KEY_REPO_ID = "repo_id";
+    private static final String KEY_REPO_NAME = "repo_name";
+    private static final String KEY_DIR = "dir";
+    private static final String KEY_WATERMARK_DATE = "watermark_date_added";
+    private static final String KEY_WATERMARK_ID = "watermark_id";
+    private static final String KEY_PENDING = "pending";
+    private static final String KEY_FAILURES = "failures";
+
+    // Failed uploads of a pending photo before it is given up
+    public static final int MAX_UPLOAD_FAILURES = 3;
+
+    // Number of photos queued by one query
+    public static final int PAGE_SIZE = 100;
+
+    private static final String[] PROJECTION = {
+        Images.Media._ID,
+        Images.Media.DATA,
+        Images.Media.DATE_ADDED,
+    };
+
+    private static final String SELECTION = Images.Media.BUCKET_ID + " = ? AND ("
+            + Images.Media.DATE_ADDED + " > ? OR ("
+            + Images.Media.DATE_ADDED + " = ? AND " + Images.Media._ID + " > ?))";
+
+    private static final String SORT_ORDER = Images.Media.DATE_ADDED + " ASC, "
+            + Images.Media._ID + " ASC";
+
+    /**
+     * New photos returned by one query, and the watermark to save with them
+     * in the pending list
+     */
+    public static class Page {
+        public final List<String> paths = new ArrayList<String>();
+        public long lastDateAdded;
+        public long lastID;
+    }
+
+    private SharedPreferences prefs;
+
+    public final Account account;
+    // The upload target, repoID is null when the upload is disabled
+    public String repoID;
+    public String repoName;
+    public String dir;
+    private long watermarkDateAdded;
+    private long watermarkID;
+    // Paths of the photos queued but not uploaded yet, in queue order
+    private final LinkedHashSet<String> pending = new LinkedHashSet<String>();
+    // Failed uploads of the pending photos which have failed
+    private final HashMap<String, Integer> failures = new HashMap<String, Integer>();
+
+    private CameraUpload(Account account, SharedPreferences prefs) {
+        this.account = account;
+        this.prefs = prefs;
+        repoID = prefs.getString(KEY_REPO_ID, null);
+        repoName = prefs.getString(KEY_REPO_NAME, null);
+        dir = prefs.getString(KEY_DIR, null);
+        watermarkDateAdded = prefs.getLong(KEY_WATERMARK_DATE, 0);
+        watermarkID = prefs.getLong(KEY_WATERMARK_ID, 0);
+        String saved = prefs.getString(KEY_PENDING, "");
+        if (saved.length() > 0) {
+            pending.addAll(Arrays.asList(saved.split("\n")));
+        }
+        // one "count:path" line per photo
+        saved = prefs.getString(KEY_FAILURES, "");
+        if (saved.length() > 0) {
+            for (String line : saved.split("\n")) {
+                int sep = line.indexOf(':');
+                try {
+                    failures.put(line.substring(sep + 1),
+                                 Integer.parseInt(line.substring(0, sep)));
+                } catch (RuntimeException e) {
+                    // ignore a malformed line, the photo starts over
+                }
+            }
+        }
+    }
+
+    public static CameraUpload getSettings(Account account) {
+        Context context = SeadroidApplication.getAppContext();
+        String name = "camera-upload-" + (account.server + account.email).hashCode();
+        return new CameraUpload(account, context.getSharedPreferences(name, 0));
+    }
+
+    public boolean isEnabled() {
+        return repoID != null;
+    }
+
+    /**
+     * Upload the photos taken from now on to the given dir
+     */
+    public void enable(String repoID, String repoName, String dir) {
+        this.repoID = repoID;
+        this.repoName = repoName;
+        this.dir = dir;
+        // date_added is in seconds
+        watermarkDateAdded = System.currentTimeMillis() / 1000;
+        watermarkID = 0;
+        pending.clear();
+        save();
+    }
+
+    public void disable() {
+        repoID = null;
+        repoName = null;
+        dir = null;
+        pending.clear();
+        save();
+    }
+
+    private void save() {
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putString(KEY_REPO_ID, repoID);
+        editor.putString(KEY_REPO_NAME, repoName);
+        editor.putString(KEY_DIR, dir);
+        editor.putLong(KEY_WATERMARK_DATE, watermarkDateAdded);
+        editor.putLong(KEY_WATERMARK_ID, watermarkID);
+        putPending(editor);
+        store(editor);
+    }
+
+    // Every finished upload rewrites the pending list from the main thread:
+    // write it to disk in the background where apply() exists. A write lost
+    // with the process only queues the photos again, it never skips one.
+    private static void store(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+    // The failure counts are kept for the pending photos only
+    private void putPending(SharedPreferences.Editor editor) {
+        failures.keySet().retainAll(pending);
+        StringBuilder sb = new StringBuilder();
+        for (String path : pending) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(path);
+        }
+        editor.putString(KEY_PENDING, sb.toString());
+
+        sb.setLength(0);
+        for (Map.Entry<String, Integer> entry : failures.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(entry.getValue()).append(':').append(entry.getKey());
+        }
+        editor.putString(KEY_FAILURES, sb.toString());
+    }
+
+    /**
+     * Query the first {@link #PAGE_SIZE} photos of the camera roll added
+     * after the given watermark. Must be called from a background thread.
+     */
+    private static Page queryAfter(ContentResolver cr, long dateAdded, long id) {
+        Page page = new Page();
+        page.lastDateAdded = dateAdded;
+        page.lastID = id;
+
+        String[] args = {
+            ImageManager.CAMERA_IMAGE_BUCKET_ID,
+            String.valueOf(dateAdded),
+            String.valueOf(dateAdded),
+            String.valueOf(id),
+        };
+        Cursor c = Images.Media.query(cr, Images.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                                      SELECTION, args, SORT_ORDER);
+        if (c == null) {
+            return page;
+        }
+        try {
+            // The provider takes no LIMIT before API 26: the cursor only
+            // fills its window on demand, so stop reading after a page
+            int rows = 0;
+            while (rows++ < PAGE_SIZE && c.moveToNext()) {
+                page.lastID = c.getLong(0);
+                page.lastDateAdded = c.getLong(2);
+                String path = c.getString(1);
+                if (path != null) {
+                    page.paths.add(path);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return page;
+    }
+
+    /**
+     * Query the new photos, following the pages up to the last one. Must be
+     * called from a background thread.
+     */
+    public List<Page> queryNewPhotos(ContentResolver cr) {
+        List<Page> pages = new ArrayList<Page>();
+        long dateAdded = watermarkDateAdded;
+        long id = watermarkID;
+        while (true) {
+            Page page = queryAfter(cr, dateAdded, id);
+            if (page.lastID == id && page.lastDateAdded == dateAdded) {
+                break;
+            }
+            pages.add(page);
+            dateAdded = page.lastDateAdded;
+            id = page.lastID;
+        }
+        return pages;
+    }
+
+    /**
+     * Add the photos of a page to the pending list and move the watermark
+     * past them, in one write. Must be called before their upload is
+     * queued.
+     */
+    public void addPending(Page page) {
+        pending.addAll(page.paths);
+        watermarkDateAdded = page.lastDateAdded;
+        watermarkID = page.lastID;
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(KEY_WATERMARK_DATE, watermarkDateAdded);
+        editor.putLong(KEY_WATERMARK_ID, watermarkID);
+        putPending(editor);
+        store(editor);
+    }
+
+    /**
+     * The pending photos still on the device, as a page which leaves the
+     * watermark where it is. Must be called from a background thread.
+     */
+    public Page queryPending() {
+        Page page = new Page();
+        page.lastDateAdded = watermarkDateAdded;
+        page.lastID = watermarkID;
+        for (String path : pending) {
+            if (new File(path).exists()) {
+                page.paths.add(path);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Drop from the pending list the photos which are not in the given
+     * page of {@link #queryPending()} any more, deleted from the device
+     */
+    public void retainPending(Page page) {
+        if (!pending.retainAll(page.paths)) {
+            return;
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        putPending(editor);
+        store(editor);
+    }
+
+    /**
+     * Remove a photo from the pending list, once uploaded or if the user
+     * has cancelled its upload. Does nothing if it is not pending.
+     */
+    public void removePending(String path) {
+        if (!pending.remove(path)) {
+            return;
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        putPending(editor);
+        store(editor);
+    }
+
+    /**
+     * Count a failed upload of a pending photo. Network errors are not
+     * counted, the photo is queued again when the service next starts.
+     *
+     * @return true if the photo has failed too many times and is removed
+     *         from the pending list
+     */
+    public boolean onUploadFailed(String path, SeafException err) {
+        if (!pending.contains(path)) {
+            return false;
+        }
+        if (err == SeafException.networkException) {
+            return false;
+        }
+        Integer count = failures.get(path);
+        count = count == null ? 1 : count + 1;
+        boolean givenUp = count >= MAX_UPLOAD_FAILURES;
+        if (givenUp) {
+            pending.remove(path);
+        } else {
+            failures.put(path, count);
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        putPending(editor);
+        store(editor);
+        return givenUp;
+    }
+}
@@ -0,0 +1,90 @@
+package com.wingufile.wingudroid2;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.actionbarsherlock.app.SherlockActivity;
+import com.actionbarsherlock.view.Menu;
+import com.actionbarsherlock.view.MenuInflater;
+import com.actionbarsherlock.view.MenuItem;
+import com.wingufile.wingudroid2.data.DataManager;
+
+/*
+ * For showing transfer metrics, and exporting them to a file
+ */
+public class DiagnosticsActivity extends SherlockActivity {
+
+    @SuppressWarnings("unused")
+    private static final String DEBUG_TAG = "DiagnosticsActivity";
+
+    private TextView reportText;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+        reportText = (TextView)findViewById(R.id.diagnostics_report);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getSupportMenuInflater();
+        inflater.inflate(R.menu.diagnostics_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.refresh:
+            refresh();
+            return true;
+        case R.id.export_diagnostics:
+            export();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private String getReport() {
+        return TransferMetrics.getInstance().dump();
+    }
+
+    private void refresh() {
+        reportText.setText(getReport());
+    }
+
+    private void export() {
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        try {
+            File file = new File(DataManager.getExternalRootDirectory(),
+                                 "diagnostics-" + time + ".txt");
+            Utils.writeFile(file, getReport());
+            showToast(getString(R.string.diagnostics_exported) + " " + file.getPath());
+        } catch (IOException e) {
+            showToast(getString(R.string.diagnostics_export_failed));
+        } catch (RuntimeException e) {
+            // external storage not available
+            showToast(getString(R.string.diagnostics_export_failed));
+        }
+    }
+
+    private void showToast(CharSequence msg) {
+        Context context = getApplicationContext();
+        Toast toast = Toast.makeText(context, msg, Toast.LENGTH_SHORT);
+        toast.show();
+    }
+}
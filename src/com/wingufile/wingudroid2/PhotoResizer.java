@@ -0,0 +1,220 @@
+package com.wingufile.wingudroid2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.Log;
+
+/**
+ * Downscales and recompresses JPEG photos before they are uploaded, when the
+ * transfer policy of the account asks for it.
+ *
+ * The photo is decoded with the largest power of two subsampling that keeps
+ * it above the target size, so the full size bitmap is never in memory,
+ * then scaled to the exact size. The EXIF attributes (orientation, date,
+ * camera, location) are copied to the new file.
+ *
+ * The resized photos are written to scratch files in the app cache dir,
+ * under the original file name so the uploaded file keeps it. The caller
+ * deletes them with {@link #deleteScratch(File)} once uploaded. Decoding is
+ * limited to {@link #MAX_PARALLEL} photos at a time, whatever the number of
+ * uploads, to bound the memory used by the bitmaps.
+ */
+public class PhotoResizer {
+
+    private static final String DEBUG_TAG = "PhotoResizer";
+
+    private static final String SCRATCH_DIR_NAME = "upload-scratch";
+    private static final int JPEG_QUALITY = 85;
+    private static final int MAX_PARALLEL = 2;
+
+    private static final String[] EXIF_TAGS = {
+        ExifInterface.TAG_ORIENTATION,
+        ExifInterface.TAG_DATETIME,
+        ExifInterface.TAG_MAKE,
+        ExifInterface.TAG_MODEL,
+        ExifInterface.TAG_FLASH,
+        ExifInterface.TAG_FOCAL_LENGTH,
+        ExifInterface.TAG_WHITE_BALANCE,
+        ExifInterface.TAG_GPS_LATITUDE,
+        ExifInterface.TAG_GPS_LATITUDE_REF,
+        ExifInterface.TAG_GPS_LONGITUDE,
+        ExifInterface.TAG_GPS_LONGITUDE_REF,
+        ExifInterface.TAG_GPS_DATESTAMP,
+        ExifInterface.TAG_GPS_TIMESTAMP,
+        ExifInterface.TAG_GPS_PROCESSING_METHOD,
+    };
+
+    private static final Semaphore permits = new Semaphore(MAX_PARALLEL);
+    private static final AtomicInteger scratchCount = new AtomicInteger();
+    private static boolean scratchCleaned = false;
+
+    private PhotoResizer() {
+    }
+
+    /**
+     * The scratch dir. The files left by a previous run of the app, killed
+     * while uploading, are deleted on first use.
+     */
+    private static synchronized File getScratchDir() {
+        File dir = new File(SeadroidApplication.getAppContext().getCacheDir(), SCRATCH_DIR_NAME);
+        if (!scratchCleaned) {
+            deleteRecursively(dir);
+            scratchCleaned = true;
+        }
+        return dir;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static boolean isJpeg(String path) {
+        return "image/jpeg".equals(Utils.getFileMimeType(path));
+    }
+
+    /**
+     * Write a copy of the photo no larger than maxPixels on its longest side.
+     * Must be called from a background thread.
+     *
+     * @return the scratch file, or null if the original should be uploaded:
+     *         it is not a JPEG, it is small enough already, or it could not
+     *         be decoded
+     * @throws InterruptedException if the thread is interrupted while
+     *         waiting for another photo to be resized
+     */
+    public static File resize(String path, int maxPixels) throws InterruptedException {
+        if (maxPixels <= 0 || !isJpeg(path)) {
+            return null;
+        }
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+        int longest = Math.max(bounds.outWidth, bounds.outHeight);
+        if (longest <= maxPixels) {
+            return null;
+        }
+
+        permits.acquire();
+        try {
+            Bitmap bitmap = decodeScaled(path, longest, maxPixels);
+            if (bitmap == null) {
+                return null;
+            }
+            try {
+                return writeScratch(path, bitmap);
+            } finally {
+                bitmap.recycle();
+            }
+        } catch (OutOfMemoryError e) {
+            Log.w(DEBUG_TAG, "out of memory resizing " + path);
+            return null;
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static Bitmap decodeScaled(String path, int longest, int maxPixels) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = 1;
+        while (longest / (opts.inSampleSize * 2) >= maxPixels) {
+            opts.inSampleSize *= 2;
+        }
+        Bitmap sampled = BitmapFactory.decodeFile(path, opts);
+        if (sampled == null) {
+            return null;
+        }
+
+        int width = sampled.getWidth();
+        int height = sampled.getHeight();
+        float scale = (float)maxPixels / Math.max(width, height);
+        if (scale >= 1) {
+            return sampled;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(sampled,
+                                                  Math.max(1, Math.round(width * scale)),
+                                                  Math.max(1, Math.round(height * scale)),
+                                                  true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    private static File writeScratch(String path, Bitmap bitmap) {
+        File dir = new File(getScratchDir(), String.valueOf(scratchCount.incrementAndGet()));
+        dir.mkdirs();
+        File file = new File(dir, Utils.fileNameFromPath(path));
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                throw new IOException("failed to compress");
+            }
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "failed to write resized " + path, e);
+            deleteScratch(file);
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        if (file.length() >= new File(path).length()) {
+            // recompressing has not made it smaller
+            deleteScratch(file);
+            return null;
+        }
+
+        copyExif(path, file, bitmap);
+        return file;
+    }
+
+    private static void copyExif(String srcPath, File dst, Bitmap bitmap) {
+        try {
+            ExifInterface src = new ExifInterface(srcPath);
+            ExifInterface exif = new ExifInterface(dst.getPath());
+            for (String tag : EXIF_TAGS) {
+                String value = src.getAttribute(tag);
+                if (value != null) {
+                    exif.setAttribute(tag, value);
+                }
+            }
+            exif.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, String.valueOf(bitmap.getWidth()));
+            exif.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, String.valueOf(bitmap.getHeight()));
+            exif.saveAttributes();
+        } catch (IOException e) {
+            // The photo is still fine, only its metadata are lost
+            Log.w(DEBUG_TAG, "failed to copy the exif of " + srcPath, e);
+        }
+    }
+
+    /**
+     * Delete a scratch file returned by {@link #resize(String, int)}
+     */
+    public static void deleteScratch(File file) {
+        file.delete();
+        file.getParentFile().delete();
+    }
+}
@@ -0,0 +1,84 @@
+package com.wingufile.wingudroid2;
+
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed transfer should be retried.
+ *
+ * The delay before a retry grows exponentially with the number of attempts
+ * and is randomized, so that many tasks failing at the same time (e.g. when
+ * the phone loses its connection) do not hit the server again in lockstep.
+ */
+public class RetryPolicy {
+
+    public static final int MAX_ATTEMPTS = 6;
+
+    private static final long BASE_DELAY = 2 * 1000;
+    private static final long MAX_DELAY = 5 * 60 * 1000;
+
+    // Retries woken up by a connectivity change are spread over this period
+    private static final int RECONNECT_SPREAD = 5 * 1000;
+
+    private final Random random = new Random();
+
+    /**
+     * Tell if an error is worth retrying. Only network and I/O errors, and
+     * the HTTP statuses telling the server or a gateway is temporarily
+     * unable to answer, are transient. Authentication, permission, "not
+     * found" and unknown errors, internal server errors, or a cancellation
+     * by the user, are not.
+     */
+    public static boolean isRetriable(SeafException e) {
+        if (e == null) {
+            return false;
+        }
+
+        int code = e.getCode();
+        if (code == SeafException.networkException.getCode()) {
+            return true;
+        }
+
+        // request timeout, too many requests, bad gateway, service
+        // unavailable, gateway timeout
+        switch (code) {
+        case 408:
+        case 429:
+        case 502:
+        case 503:
+        case 504:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @param e the error of the last attempt
+     * @param attempt the number of retries done so far
+     */
+    public boolean shouldRetry(SeafException e, int attempt) {
+        return attempt < MAX_ATTEMPTS && isRetriable(e);
+    }
+
+    /**
+     * The delay before the given retry, in milliseconds. It is chosen at
+     * random between half and the whole of the exponential backoff.
+     */
+    public long getRetryDelay(int attempt) {
+        long backoff = BASE_DELAY << Math.min(attempt, 16);
+        if (backoff > MAX_DELAY) {
+            backoff = MAX_DELAY;
+        }
+
+        long half = backoff / 2;
+        return half + (long)(random.nextDouble() * half);
+    }
+
+    /**
+     * The delay before a retry which was waiting for the network to come
+     * back, in milliseconds.
+     */
+    public long getReconnectDelay() {
+        return random.nextInt(RECONNECT_SPREAD);
+    }
+}
@@ -2,14 +2,21 @@ package com.wingufile.wingudroid2;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.os.AsyncTask;
+import android.os.Handler;
 import android.util.Log;
 
 import com.wingufile.wingudroid2.account.Account;
 import com.wingufile.wingudroid2.data.DataManager;
+import com.wingufile.wingudroid2.data.DataManager.BatchProgressMonitor;
 import com.wingufile.wingudroid2.data.DataManager.ProgressMonitor;
 
 /**
@@ -24,6 +31,15 @@ public class TransferManager {
 
     public enum TaskState { INIT, TRANSFERRING, FINISHED, CANCELLED, FAILED }
 
+    // Small new files waiting for the same repo dir are uploaded together in
+    // one request, up to these limits
+    private static final long BATCH_MAX_FILE_SIZE = 1024 * 1024;
+    private static final long BATCH_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int BATCH_MAX_FILES = 20;
+    // How long a small new file waits before its upload starts, for the
+    // files added right after it to join its request
+    private static final long BATCH_START_DELAY = 500;
+
     public interface TransferListener {
 
         public void onFileUploadProgress(int taskID);
@@ -37,16 +53,142 @@ public class TransferManager {
 
     }
 
-    private ArrayList<UploadTask> uploadTasks;
-    private ArrayList<DownloadTask> downloadTasks;
-    private int notificationID;
+    /**
+     * Common view of upload and download tasks, used by {@link TaskRegistry}
+     * to index them.
+     */
+    private interface TransferTask {
+        public int getTaskID();
+        public String getRepoID();
+        public String getPath();
+        public TaskState getState();
+        /**
+         * Tell if the network conditions allow the task to start
+         */
+        public boolean canStart();
+        /**
+         * @return how long to wait before starting the task, in ms
+         */
+        public long getStartDelay();
+        public void start();
+    }
+
+    /**
+     * Thread-safe registry of transfer tasks.
+     *
+     * Tasks are indexed both by task ID and by (repoID, path), so lookups and
+     * duplicate checks are constant-time. The ordered list is copy-on-write,
+     * so readers iterate over a consistent snapshot without taking a lock.
+     * Writers are serialized on the registry itself to keep the three
+     * collections in sync.
+     */
+    private static class TaskRegistry<T extends TransferTask> {
+        private final ConcurrentHashMap<Integer, T> tasksByID = new ConcurrentHashMap<Integer, T>();
+        private final ConcurrentHashMap<String, T> tasksByPath = new ConcurrentHashMap<String, T>();
+        private final CopyOnWriteArrayList<T> tasks = new CopyOnWriteArrayList<T>();
+
+        private static String pathKey(String repoID, String path) {
+            // A separator which can't be in a repo ID, so that no two
+            // (repoID, path) pairs share a key
+            return repoID + "\n" + path;
+        }
+
+        public T getByID(int taskID) {
+            return tasksByID.get(taskID);
+        }
+
+        public T getByPath(String repoID, String path) {
+            return tasksByPath.get(pathKey(repoID, path));
+        }
+
+        /**
+         * Register a task. A task previously registered for the same
+         * (repoID, path) is replaced, keeping its position in the list.
+         */
+        public synchronized void add(T task) {
+            T old = tasksByPath.put(pathKey(task.getRepoID(), task.getPath()), task);
+            int index = -1;
+            if (old != null) {
+                tasksByID.remove(old.getTaskID());
+                index = tasks.indexOf(old);
+            }
+            tasksByID.put(task.getTaskID(), task);
+            if (index != -1) {
+                tasks.set(index, task);
+            } else {
+                tasks.add(task);
+            }
+        }
+
+        /**
+         * Register several tasks in one go, as {@link #add(Object)} does.
+         * The new tasks are appended to the list with a single copy.
+         */
+        public synchronized void addAll(List<T> newTasks) {
+            ArrayList<T> appended = new ArrayList<T>(newTasks.size());
+            for (T task : newTasks) {
+                T old = tasksByPath.put(pathKey(task.getRepoID(), task.getPath()), task);
+                int index = -1;
+                if (old != null) {
+                    tasksByID.remove(old.getTaskID());
+                    index = tasks.indexOf(old);
+                    if (index == -1) {
+                        // added earlier in this call
+                        appended.set(appended.indexOf(old), task);
+                    }
+                }
+                tasksByID.put(task.getTaskID(), task);
+                if (index != -1) {
+                    tasks.set(index, task);
+                } else if (old == null) {
+                    appended.add(task);
+                }
+            }
+            tasks.addAll(appended);
+        }
+
+        public synchronized void remove(T task) {
+            if (!tasksByID.remove(task.getTaskID(), task)) {
+                return;
+            }
+            tasksByPath.remove(pathKey(task.getRepoID(), task.getPath()), task);
+            tasks.remove(task);
+        }
+
+        /**
+         * @return a read-only view of all tasks, in insertion order. Iterating
+         *         over it sees a consistent snapshot of the list.
+         */
+        public List<T> snapshot() {
+            return Collections.unmodifiableList(tasks);
+        }
+    }
+
+    private final TaskRegistry<UploadTask> uploadTasks;
+    private final TaskRegistry<DownloadTask> downloadTasks;
+    private final AtomicInteger notificationID;
     TransferListener listener;
 
+    private final RetryPolicy retryPolicy;
+    // Must be created on the main thread, like the AsyncTasks
+    private final Handler handler;
+    // Tasks which are waiting for the network to come back, or for the
+    // transfer policy to allow them. Only accessed from the main thread.
+    private final ArrayList<Runnable> tasksWaitingForNetwork;
+    // The starters of the tasks which have not started yet, posted to the
+    // handler or parked in tasksWaitingForNetwork. Only accessed from the
+    // main thread.
+    private final IdentityHashMap<TransferTask, Runnable> pendingStarters;
+
     public TransferManager() {
-        notificationID = 0;
-        uploadTasks = new ArrayList<UploadTask>();
-        downloadTasks = new ArrayList<DownloadTask>();
+        notificationID = new AtomicInteger(0);
+        uploadTasks = new TaskRegistry<UploadTask>();
+        downloadTasks = new TaskRegistry<DownloadTask>();
         listener = null;
+        retryPolicy = new RetryPolicy();
+        handler = new Handler();
+        tasksWaitingForNetwork = new ArrayList<Runnable>();
+        pendingStarters = new IdentityHashMap<TransferTask, Runnable>();
     }
 
     public void setListener(TransferListener listener) {
@@ -57,33 +199,215 @@ public class TransferManager {
         listener = null;
     }
 
+    private static boolean isActive(TaskState state) {
+        return state == TaskState.INIT || state == TaskState.TRANSFERRING;
+    }
+
+    /**
+     * Create a runnable which starts a task if the network conditions allow
+     * it, and parks it until {@link #resumeWaitingTasks()} otherwise.
+     *
+     * The task is in INIT state until started, so it may be cancelled by the
+     * user in the meantime.
+     */
+    private Runnable newTaskStarter(final TransferTask task) {
+        Runnable starter = new Runnable() {
+            @Override
+            public void run() {
+                if (task.getState() != TaskState.INIT) {
+                    // cancelled while waiting
+                    pendingStarters.remove(task);
+                    return;
+                }
+                if (!task.canStart()) {
+                    tasksWaitingForNetwork.add(this);
+                    return;
+                }
+                pendingStarters.remove(task);
+                task.start();
+            }
+        };
+        pendingStarters.put(task, starter);
+        return starter;
+    }
+
+    /**
+     * Forget the starter of a task which is cancelled before it starts.
+     *
+     * @return true if the task was waiting to start, and so will never be
+     *         executed
+     */
+    private boolean dropPendingStart(TransferTask task) {
+        Runnable starter = pendingStarters.remove(task);
+        if (starter == null) {
+            return false;
+        }
+        handler.removeCallbacks(starter);
+        tasksWaitingForNetwork.remove(starter);
+        return true;
+    }
+
+    /**
+     * Start a task after its start delay, or park it until the network
+     * allows it.
+     */
+    private void startOrPark(TransferTask task) {
+        Runnable starter = newTaskStarter(task);
+        long delay = task.getStartDelay();
+        if (delay > 0) {
+            handler.postDelayed(starter, delay);
+        } else {
+            starter.run();
+        }
+    }
+
+    /**
+     * Start a retry task after a backoff delay.
+     */
+    private void scheduleRetry(TransferTask task, int attempt) {
+        Runnable starter = newTaskStarter(task);
+
+        long delay = retryPolicy.getRetryDelay(attempt);
+        Log.d(DEBUG_TAG, "retry task " + task.getTaskID() + " in " + delay + "ms, attempt " + attempt);
+        if (task.canStart()) {
+            handler.postDelayed(starter, delay);
+        } else {
+            tasksWaitingForNetwork.add(starter);
+        }
+    }
+
+    /**
+     * Called when the network conditions, or the transfer policies, have
+     * changed. The tasks parked are started again, spread over a few
+     * seconds. Those which still cannot start are parked again.
+     */
+    public void resumeWaitingTasks() {
+        if (tasksWaitingForNetwork.isEmpty()) {
+            return;
+        }
+
+        Log.d(DEBUG_TAG, tasksWaitingForNetwork.size() + " tasks waiting for network");
+        for (Runnable starter : tasksWaitingForNetwork) {
+            handler.postDelayed(starter, retryPolicy.getReconnectDelay());
+        }
+        tasksWaitingForNetwork.clear();
+    }
+
+    /**
+     * Replace a failed upload task by a new one keeping the same task ID, and
+     * schedule it if the error is transient.
+     *
+     * @return true if a retry has been scheduled
+     */
+    private boolean autoRetryUpload(UploadTask failed) {
+        if (!retryPolicy.shouldRetry(failed.err, failed.attempt)) {
+            return false;
+        }
+
+        UploadTask task = new UploadTask(failed);
+        synchronized (uploadTasks) {
+            if (uploadTasks.getByID(failed.myID) != failed) {
+                // removed or replaced in the meantime
+                return false;
+            }
+            uploadTasks.add(task);
+        }
+        scheduleRetry(task, failed.attempt);
+        return true;
+    }
+
+    private boolean autoRetryDownload(DownloadTask failed) {
+        if (!retryPolicy.shouldRetry(failed.err, failed.attempt)) {
+            return false;
+        }
+
+        DownloadTask task = new DownloadTask(failed);
+        synchronized (downloadTasks) {
+            if (downloadTasks.getByID(failed.taskID) != failed) {
+                return false;
+            }
+            downloadTasks.add(task);
+        }
+        scheduleRetry(task, failed.attempt);
+        return true;
+    }
+
     /**
      * Add a new upload task
      */
     public int addUploadTask(Account account, String repoID, String repoName,
                               String dir, String filePath, boolean isUpdate) {
-        Iterator<UploadTask> iter = uploadTasks.iterator();
-        while (iter.hasNext()) {
-            UploadTask task = iter.next();
-            if (task.myRepoID.equals(repoID) && task.myPath.equals(filePath)) {
-                if (task.myState == TaskState.CANCELLED || task.myState == TaskState.FAILED
-                        || task.myState == TaskState.FINISHED) {
-                    // If there is a duplicate, but it has failed or been
-                    // cancelled, remove it first
-                    iter.remove();
-                    break;
-                } else {
-                    // A duplicate task is uploading
-                    return task.getTaskID();
-                }
+        UploadTask task;
+        synchronized (uploadTasks) {
+            task = uploadTasks.getByPath(repoID, filePath);
+            if (task != null && isActive(task.getState())) {
+                // A duplicate task is uploading
+                return task.getTaskID();
             }
+
+            // If there is a duplicate, but it has failed, finished or been
+            // cancelled, it is replaced by the new task
+            task = new UploadTask(account, repoID, repoName, dir, filePath, isUpdate);
+            uploadTasks.add(task);
         }
 
-        UploadTask task = new UploadTask(account, repoID, repoName, dir, filePath, isUpdate);
-        task.execute();
+        // Uploads are bulk transfers, they may have to wait for a network
+        // allowed by the transfer policy of the account
+        startOrPark(task);
         return task.getTaskID();
     }
 
+    /**
+     * Add upload tasks for several new files of the same dir, such as a
+     * selection of photos. The files are stat'ed in the background, then all
+     * the tasks are registered at once and started. Must be called from the
+     * main thread.
+     */
+    public void addUploadTasks(final Account account, final String repoID,
+                               final String repoName, final String dir,
+                               final List<String> filePaths) {
+        ConcurrentAsyncTask.execute(new AsyncTask<Void, Void, long[]>() {
+            @Override
+            protected long[] doInBackground(Void... params) {
+                long[] sizes = new long[filePaths.size()];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = new File(filePaths.get(i)).length();
+                }
+                return sizes;
+            }
+
+            @Override
+            protected void onPostExecute(long[] sizes) {
+                addUploadTasks(account, repoID, repoName, dir, filePaths, sizes);
+            }
+        });
+    }
+
+    private void addUploadTasks(Account account, String repoID, String repoName,
+                                String dir, List<String> filePaths, long[] sizes) {
+        DataManager dataManager = new DataManager(account);
+        ArrayList<UploadTask> added = new ArrayList<UploadTask>(filePaths.size());
+        HashSet<String> seen = new HashSet<String>();
+        synchronized (uploadTasks) {
+            for (int i = 0; i < sizes.length; i++) {
+                String filePath = filePaths.get(i);
+                UploadTask task = uploadTasks.getByPath(repoID, filePath);
+                if ((task != null && isActive(task.getState())) || !seen.add(filePath)) {
+                    continue;
+                }
+                added.add(new UploadTask(account, repoID, repoName, dir, filePath, false,
+                                         dataManager, sizes[i]));
+            }
+            uploadTasks.addAll(added);
+        }
+
+        // Started once all are registered, so that the small files can be
+        // batched together
+        for (UploadTask task : added) {
+            startOrPark(task);
+        }
+    }
+
     /**
      * Add a new download task
      */
@@ -91,35 +415,24 @@ public class TransferManager {
                                String repoName,
                                String repoID,
                                String path) {
-        Iterator<DownloadTask> iter = downloadTasks.iterator();
-        while (iter.hasNext()) {
-            DownloadTask task = iter.next();
-            if (task.myRepoID.equals(repoID) && task.myPath.equals(path)) {
-                if (task.myState == TaskState.CANCELLED || task.myState == TaskState.FAILED
-                        || task.myState == TaskState.FINISHED) {
-                    // If there is a duplicate, but it has failed or been
-                    // cancelled, remove it first
-                    iter.remove();
-                    break;
-                } else {
-                    // A duplicate task is downloading
-                    return task.getTaskID();
-                }
+        DownloadTask task;
+        synchronized (downloadTasks) {
+            task = downloadTasks.getByPath(repoID, path);
+            if (task != null && isActive(task.getState())) {
+                // A duplicate task is downloading
+                return task.getTaskID();
             }
+
+            task = new DownloadTask(account, repoName, repoID, path);
+            downloadTasks.add(task);
         }
 
-        DownloadTask task = new DownloadTask(account, repoName, repoID, path);
         task.execute();
         return task.getTaskID();
     }
 
     private UploadTask getUploadTaskByID(int taskID) {
-        for (UploadTask task : uploadTasks) {
-            if (task.getTaskID() == taskID) {
-                return task;
-            }
-        }
-        return null;
+        return uploadTasks.getByID(taskID);
     }
 
     public UploadTaskInfo getUploadTaskInfo (int taskID) {
@@ -132,8 +445,9 @@ public class TransferManager {
     }
 
     public List<UploadTaskInfo> getAllUploadTaskInfos() {
-        ArrayList<UploadTaskInfo> infos = new ArrayList<UploadTaskInfo>();
-        for (UploadTask task : uploadTasks) {
+        List<UploadTask> tasks = uploadTasks.snapshot();
+        ArrayList<UploadTaskInfo> infos = new ArrayList<UploadTaskInfo>(tasks.size());
+        for (UploadTask task : tasks) {
             infos.add(task.getTaskInfo());
         }
 
@@ -144,15 +458,17 @@ public class TransferManager {
         UploadTask task = getUploadTaskByID(taskID);
         if (task != null) {
             uploadTasks.remove(task);
+            // A task waiting to start is never executed, its transfer ends here
+            if (task.getState() == TaskState.INIT && dropPendingStart(task)) {
+                task.metrics.onFinished(false);
+            }
         }
     }
 
     public void removeFinishedUploadTasks() {
-        Iterator<UploadTask> iter = uploadTasks.iterator();
-        while (iter.hasNext()) {
-            UploadTask task = iter.next();
+        for (UploadTask task : uploadTasks.snapshot()) {
             if (task.getState() == TaskState.FINISHED) {
-                iter.remove();
+                uploadTasks.remove(task);
             }
         }
     }
@@ -179,12 +495,7 @@ public class TransferManager {
     }
 
     private DownloadTask getDownloadTaskByID(int taskID) {
-        for (DownloadTask task : downloadTasks) {
-            if (task.getTaskID() == taskID) {
-                return task;
-            }
-        }
-        return null;
+        return downloadTasks.getByID(taskID);
     }
 
     public DownloadTaskInfo getDownloadTaskInfo (int taskID) {
@@ -196,7 +507,7 @@ public class TransferManager {
         return null;
     }
 
-    private class UploadTask extends AsyncTask<String, Long, Void> {
+    private class UploadTask extends AsyncTask<String, Long, Void> implements TransferTask {
 
         private String myRepoID;
         private String myRepoName;
@@ -204,11 +515,25 @@ public class TransferManager {
         private String myPath;  // local file path
         private boolean isUpdate;  // true if update an existing file
 
-        private TaskState myState;
+        private volatile TaskState myState;
         private int myID;
         private long myUploaded;
         private long mySize;
         private DataManager dataManager;
+        // number of automatic retries before this task
+        private int attempt;
+        private TransferMetrics.Transfer metrics;
+
+        // The tasks uploaded in the same request as this one. Only accessed
+        // from the main thread, except by doInBackground of the leader.
+        private ArrayList<UploadTask> batch;
+        // The task whose request uploads this one, if it is in a batch
+        private UploadTask batchLeader;
+
+        // Set by doInBackground: the metered data reserved for this request,
+        // or parked if the transfer policy did not allow it to run
+        private TransferPolicy.Reservation reservation;
+        private volatile boolean parked;
 
         SeafException err;
 
@@ -216,23 +541,64 @@ public class TransferManager {
 
         public UploadTask(Account account, String repoID, String repoName,
                           String dir, String filePath, boolean isUpdate) {
+            this(account, repoID, repoName, dir, filePath, isUpdate,
+                 new DataManager(account), new File(filePath).length());
+        }
+
+        /**
+         * @param size the size of the file, already known
+         */
+        public UploadTask(Account account, String repoID, String repoName,
+                          String dir, String filePath, boolean isUpdate,
+                          DataManager dataManager, long size) {
+            this(account, repoID, repoName, dir, filePath, isUpdate,
+                 notificationID.incrementAndGet(), 0,
+                 TransferMetrics.getInstance().newTransfer(true, filePath),
+                 dataManager, size);
+        }
+
+        /**
+         * Create a task retrying a failed one, with the same task ID and
+         * metrics.
+         */
+        public UploadTask(UploadTask failed) {
+            this(failed.account, failed.myRepoID, failed.myRepoName, failed.myDir,
+                 failed.myPath, failed.isUpdate, failed.myID, failed.attempt + 1,
+                 failed.metrics, failed.dataManager, new File(failed.myPath).length());
+            metrics.onRetry();
+        }
+
+        /**
+         * Create a task taking the place of this one, which has been
+         * executed, with the same task ID, attempt and metrics
+         */
+        private UploadTask copy() {
+            return new UploadTask(account, myRepoID, myRepoName, myDir, myPath, isUpdate,
+                                  myID, attempt, metrics, dataManager,
+                                  new File(myPath).length());
+        }
+
+        private UploadTask(Account account, String repoID, String repoName,
+                           String dir, String filePath, boolean isUpdate,
+                           int taskID, int attempt, TransferMetrics.Transfer metrics,
+                           DataManager dataManager, long size) {
             this.account = account;
             this.myRepoID = repoID;
             this.myRepoName = repoName;
             this.myDir = dir;
             this.myPath = filePath;
             this.isUpdate = isUpdate;
-            this.dataManager = new DataManager(account);
+            this.dataManager = dataManager;
+            mySize = size;
 
-            File f = new File(filePath);
-            mySize = f.length();
-
-            myID = ++notificationID;
+            myID = taskID;
+            this.attempt = attempt;
+            this.metrics = metrics;
             myState = TaskState.INIT;
             myUploaded = 0;
+            batch = new ArrayList<UploadTask>();
+            batchLeader = null;
 
-            // Log.d(DEBUG_TAG, "stored object is " + myPath + myObjectID);
-            uploadTasks.add(this);
             err = null;
         }
 
@@ -240,12 +606,91 @@ public class TransferManager {
             return myID;
         }
 
+        public String getRepoID() {
+            return myRepoID;
+        }
+
+        public String getPath() {
+            return myPath;
+        }
+
         public TaskState getState() {
             return myState;
         }
 
+        public boolean canStart() {
+            return TransferPolicy.getPolicy(account).allowsBulkTransfer(mySize);
+        }
+
+        public long getStartDelay() {
+            return isBatchable() ? BATCH_START_DELAY : 0;
+        }
+
+        public void start() {
+            collectBatch();
+            execute();
+        }
+
+        private boolean isBatchable() {
+            return !isUpdate && mySize <= BATCH_MAX_FILE_SIZE;
+        }
+
+        /**
+         * Take the other small files waiting to be uploaded to the same dir,
+         * so they are sent in the request of this task. The policy is read
+         * once for the whole batch, which must fit in what it allows.
+         */
+        private void collectBatch() {
+            if (!isBatchable()) {
+                return;
+            }
+
+            long maxBytes = Math.min(BATCH_MAX_BYTES,
+                                     TransferPolicy.getPolicy(account).getBulkTransferAllowance());
+            long batchSize = mySize;
+            for (UploadTask task : uploadTasks.snapshot()) {
+                if (batch.size() + 1 >= BATCH_MAX_FILES) {
+                    break;
+                }
+                if (task == this || task.myState != TaskState.INIT || task.batchLeader != null
+                    || !task.isBatchable()
+                    || batchSize + task.mySize > maxBytes
+                    || !task.account.equals(account)
+                    || !task.myRepoID.equals(myRepoID) || !task.myDir.equals(myDir)) {
+                    continue;
+                }
+
+                // It is started by this task now, not by its own starter
+                dropPendingStart(task);
+                task.batchLeader = this;
+                task.myState = TaskState.TRANSFERRING;
+                task.metrics.onStarted();
+                batch.add(task);
+                batchSize += task.mySize;
+            }
+
+            if (!batch.isEmpty()) {
+                Log.d(DEBUG_TAG, "task " + myID + " uploads " + batch.size() + " more files");
+            }
+        }
+
+        /**
+         * Put the tasks of the batch back into the queue, when the request
+         * of this task was cancelled
+         */
+        private void releaseBatch() {
+            for (UploadTask task : batch) {
+                task.batchLeader = null;
+                if (task.myState == TaskState.TRANSFERRING) {
+                    task.myState = TaskState.INIT;
+                    startOrPark(task);
+                }
+            }
+            batch.clear();
+        }
+
         public UploadTaskInfo getTaskInfo() {
-            UploadTaskInfo info = new UploadTaskInfo(myID, myState, myRepoID,
+            UploadTaskInfo info = new UploadTaskInfo(account, myID, myState, myRepoID,
                                                      myRepoName, myDir, myPath, isUpdate,
                                                      myUploaded, mySize, err);
             return info;
@@ -255,7 +700,6 @@ public class TransferManager {
             if (myState != TaskState.CANCELLED && myState != TaskState.FAILED) {
                 return;
             }
-            uploadTasks.remove(this);
             addUploadTask(account, myRepoID, myRepoName, myDir, myPath, isUpdate);
         }
 
@@ -264,6 +708,17 @@ public class TransferManager {
                 return;
             }
             myState = TaskState.CANCELLED;
+            // A task which has not been executed never gets onCancelled(),
+            // it is finished here. In a batch, the content of the file may
+            // already be sent in the request of the leader, which cannot be
+            // cut short for this file only.
+            if (batchLeader != null || dropPendingStart(this)) {
+                metrics.onFinished(false);
+                if (listener != null) {
+                    listener.onFileUploadCancelled(myID);
+                }
+                return;
+            }
             super.cancel(true);
         }
 
@@ -276,14 +731,40 @@ public class TransferManager {
         protected void onProgressUpdate(Long... values) {
             long uploaded = values[0];
             Log.d(DEBUG_TAG, "Uploaded " + uploaded);
-            myUploaded = uploaded;
+            // In a batch the progress is the total of all the files, sent
+            // in the order of the batch
+            myUploaded = Math.min(uploaded, mySize);
             listener.onFileUploadProgress(myID);
+
+            long offset = mySize;
+            for (UploadTask task : batch) {
+                task.myUploaded = Math.max(0, Math.min(uploaded - offset, task.mySize));
+                offset += task.mySize;
+                if (task.myState == TaskState.TRANSFERRING) {
+                    listener.onFileUploadProgress(task.myID);
+                }
+            }
         }
 
         @Override
         protected Void doInBackground(String... params) {
+            // The policy was checked when the task was queued, but the task
+            // may have waited for the executor since, and the network or
+            // the power source may have changed
+            long total = mySize;
+            for (UploadTask task : batch) {
+                total += task.mySize;
+            }
+            reservation = TransferPolicy.getPolicy(account).reserveBulkTransfer(total);
+            if (reservation == null) {
+                parked = true;
+                return null;
+            }
+
+            // the resized copies of the photos of this request
+            List<File> scratchFiles = new ArrayList<File>();
             try {
-                ProgressMonitor monitor = new ProgressMonitor() {
+                ProgressMonitor monitor = new BatchProgressMonitor() {
                     @Override
                     public void onProgressNotify(long uploaded) {
                         publishProgress(uploaded);
@@ -293,23 +774,120 @@ public class TransferManager {
                     public boolean isCancelled() {
                         return UploadTask.this.isCancelled();
                     }
+
+                    @Override
+                    public TransferMetrics.Transfer getMetrics() {
+                        return metrics;
+                    }
+
+                    @Override
+                    public TransferMetrics.Transfer getMetrics(int index) {
+                        return index == 0 ? metrics : batch.get(index - 1).metrics;
+                    }
                 };
+                metrics.onStarted();
                 if (isUpdate) {
                     dataManager.updateFile(myRepoName, myRepoID, myDir, myPath, monitor);
+                } else if (!batch.isEmpty()) {
+                    uploadBatch(monitor, scratchFiles);
                 } else {
-                    dataManager.uploadFile(myRepoName, myRepoID, myDir, myPath, monitor);
+                    dataManager.uploadFile(myRepoName, myRepoID, myDir,
+                                           getUploadPath(scratchFiles), monitor);
                 }
             } catch (SeafException e) {
                 Log.d("Upload", "Exception " + e.getCode() + " " + e.getMessage());
                 err = e;
+                for (UploadTask task : batch) {
+                    task.err = e;
+                }
+            } finally {
+                for (File file : scratchFiles) {
+                    PhotoResizer.deleteScratch(file);
+                }
             }
 
             return null;
         }
 
+        /**
+         * The path of the file to send: a resized copy if the file is a photo
+         * and the transfer policy of the account asks for it, the file itself
+         * otherwise. The size of the task becomes the size of the copy.
+         */
+        private String getUploadPath(List<File> scratchFiles) throws SeafException {
+            int maxPixels = TransferPolicy.getPolicy(account).resizePhotosMaxPx;
+            File resized;
+            try {
+                resized = PhotoResizer.resize(myPath, maxPixels);
+            } catch (InterruptedException e) {
+                throw SeafException.userCancelledException;
+            }
+            if (resized == null) {
+                return myPath;
+            }
+            scratchFiles.add(resized);
+            mySize = resized.length();
+            return resized.getPath();
+        }
+
+        private void uploadBatch(ProgressMonitor monitor,
+                                 List<File> scratchFiles) throws SeafException {
+            List<String> paths = new ArrayList<String>(batch.size() + 1);
+            paths.add(getUploadPath(scratchFiles));
+            for (UploadTask task : batch) {
+                paths.add(task.getUploadPath(scratchFiles));
+            }
+
+            List<String> fileIDs = dataManager.uploadFiles(myRepoName, myRepoID, myDir,
+                                                           paths, monitor);
+
+            // The files the server has not returned an ID for are failed
+            if (fileIDs.get(0) == null) {
+                err = SeafException.illFormatException;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (fileIDs.get(i + 1) == null) {
+                    batch.get(i).err = SeafException.illFormatException;
+                }
+            }
+        }
+
         @Override
         protected void onPostExecute(Void v) {
+            if (parked) {
+                park();
+                return;
+            }
+
+            // The reservation was made with the sizes known then, the
+            // photos may have been resized since, and some files failed
+            long uploaded = err == null ? mySize : 0;
+            for (UploadTask task : batch) {
+                if (task.err == null) {
+                    uploaded += task.mySize;
+                }
+            }
+            TransferPolicy.getPolicy(account).settle(reservation, uploaded);
+
+            onUploadDone();
+            for (UploadTask task : batch) {
+                task.batchLeader = null;
+                if (task.myState == TaskState.TRANSFERRING) {
+                    task.onUploadDone();
+                }
+            }
+        }
+
+        private void onUploadDone() {
             myState = err == null ? TaskState.FINISHED : TaskState.FAILED;
+            if (err != null && autoRetryUpload(this)) {
+                // The retry task has taken over the task ID and is waiting
+                if (listener != null) {
+                    listener.onFileUploadProgress(myID);
+                }
+                return;
+            }
+            metrics.onFinished(err == null);
             if (listener != null) {
                 if (err == null) {
                     listener.onFileUploaded(myID);
@@ -320,15 +898,42 @@ public class TransferManager {
             }
         }
 
+        /**
+         * The transfer policy did not allow the request to run. An AsyncTask
+         * can't be executed twice, so a copy of this task takes its place
+         * and waits, and the tasks of the batch wait on their own again.
+         */
+        private void park() {
+            releaseBatch();
+            UploadTask task = copy();
+            synchronized (uploadTasks) {
+                if (uploadTasks.getByID(myID) != this) {
+                    // removed in the meantime
+                    return;
+                }
+                uploadTasks.add(task);
+            }
+            Log.d(DEBUG_TAG, "task " + myID + " is not allowed to run now, parked");
+            startOrPark(task);
+            if (listener != null) {
+                listener.onFileUploadProgress(myID);
+            }
+        }
+
         @Override
         protected void onCancelled() {
+            if (reservation != null) {
+                TransferPolicy.getPolicy(account).release(reservation);
+            }
+            metrics.onFinished(false);
+            releaseBatch();
             if (listener != null) {
                 listener.onFileUploadCancelled(myID);
             }
         }
     }
 
-    private class DownloadTask extends AsyncTask<String, Long, File> {
+    private class DownloadTask extends AsyncTask<String, Long, File> implements TransferTask {
 
         private int taskID;
 
@@ -337,10 +942,29 @@ public class TransferManager {
         private String myRepoID;
         private String myPath;
         private long mySize, finished;
-        private TaskState myState;
+        private volatile TaskState myState;
+        // number of automatic retries before this task
+        private int attempt;
+        private TransferMetrics.Transfer metrics;
         SeafException err;
 
         public DownloadTask(Account account, String repoName, String repoID, String path) {
+            this(account, repoName, repoID, path, notificationID.incrementAndGet(), 0,
+                 TransferMetrics.getInstance().newTransfer(false, path));
+        }
+
+        /**
+         * Create a task retrying a failed one, with the same task ID and
+         * metrics.
+         */
+        public DownloadTask(DownloadTask failed) {
+            this(failed.account, failed.myRepoName, failed.myRepoID, failed.myPath,
+                 failed.taskID, failed.attempt + 1, failed.metrics);
+            metrics.onRetry();
+        }
+
+        private DownloadTask(Account account, String repoName, String repoID, String path,
+                             int taskID, int attempt, TransferMetrics.Transfer metrics) {
             this.account = account;
             this.myRepoName = repoName;
             this.myRepoID = repoID;
@@ -349,10 +973,10 @@ public class TransferManager {
 
             // The size of the file would be known in the first progress update
             this.mySize = -1;
-            this.taskID = ++notificationID;
+            this.taskID = taskID;
+            this.attempt = attempt;
+            this.metrics = metrics;
 
-            // Log.d(DEBUG_TAG, "stored object is " + myPath + myObjectID);
-            downloadTasks.add(this);
             err = null;
         }
 
@@ -374,6 +998,7 @@ public class TransferManager {
         @Override
         protected File doInBackground(String... params) {
             try {
+                metrics.onStarted();
                 DataManager dataManager = new DataManager(account);
                 return dataManager.getFile(myRepoName, myRepoID, myPath,
                         new ProgressMonitor() {
@@ -387,6 +1012,11 @@ public class TransferManager {
                             public boolean isCancelled() {
                                 return DownloadTask.this.isCancelled();
                             }
+
+                            @Override
+                            public TransferMetrics.Transfer getMetrics() {
+                                return metrics;
+                            }
                         }
                         );
             } catch (SeafException e) {
@@ -397,14 +1027,23 @@ public class TransferManager {
 
         @Override
         protected void onPostExecute(File file) {
+            if (file == null) {
+                myState = TaskState.FAILED;
+                if (err == null)
+                    err = SeafException.unknownException;
+                if (autoRetryDownload(this)) {
+                    if (listener != null) {
+                        listener.onFileDownloadProgress(taskID);
+                    }
+                    return;
+                }
+            }
+            metrics.onFinished(file != null);
             if (listener != null) {
                 if (file != null) {
                     myState = TaskState.FINISHED;
                     listener.onFileDownloaded(taskID);
                 } else {
-                    myState = TaskState.FAILED;
-                    if (err == null)
-                        err = SeafException.unknownException;
                     listener.onFileDownloadFailed(taskID);
                 }
             }
@@ -413,12 +1052,38 @@ public class TransferManager {
         @Override
         protected void onCancelled() {
             myState = TaskState.CANCELLED;
+            metrics.onFinished(false);
         }
 
         public int getTaskID() {
             return taskID;
         }
 
+        public String getRepoID() {
+            return myRepoID;
+        }
+
+        public String getPath() {
+            return myPath;
+        }
+
+        public TaskState getState() {
+            return myState;
+        }
+
+        public boolean canStart() {
+            // Downloads are interactive, they only need a network
+            return Utils.isNetworkOn();
+        }
+
+        public long getStartDelay() {
+            return 0;
+        }
+
+        public void start() {
+            execute();
+        }
+
         public DownloadTaskInfo getTaskInfo() {
             DownloadTaskInfo info = new DownloadTaskInfo(taskID, myState, myRepoID,
                                                          myRepoName, myPath, mySize, finished, err);
@@ -430,11 +1095,17 @@ public class TransferManager {
                 return;
             }
             myState = TaskState.CANCELLED;
+            if (dropPendingStart(this)) {
+                // never executed, onCancelled() won't be called
+                metrics.onFinished(false);
+                return;
+            }
             super.cancel(true);
         }
     }
 
     public class UploadTaskInfo {
+        public final Account account;
         public final int taskID;
         public final TaskState state;
         public final String repoID;
@@ -445,11 +1116,12 @@ public class TransferManager {
         public final long uploadedSize, totalSize;
         public final SeafException err;
 
-        public UploadTaskInfo(int taskID, TaskState state, String repoID,
+        public UploadTaskInfo(Account account, int taskID, TaskState state, String repoID,
                               String repoName, String parentDir,
                               String localFilePath, boolean isUpdate,
                               long uploadedSize, long totalSize,
                               SeafException err) {
+            this.account = account;
             this.taskID = taskID;
             this.state = state;
             this.repoID = repoID;
@@ -0,0 +1,324 @@
+package com.wingufile.wingudroid2;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects throughput and latency metrics of file transfers.
+ *
+ * Each transfer gets a {@link Transfer} recorder which is fed by the
+ * monitored streams and by SeafConnection. Counters are plain atomics, and
+ * throughput is computed over a moving window of one second buckets, so
+ * recording is cheap enough to be done on every read/write of a stream.
+ */
+public class TransferMetrics {
+
+    // Number of one second buckets in the moving window
+    private static final int WINDOW_SECONDS = 10;
+    // Number of finished transfers kept for the diagnostics screen
+    private static final int MAX_RECENT_TRANSFERS = 50;
+
+    private static TransferMetrics instance = null;
+
+    public static synchronized TransferMetrics getInstance() {
+        if (instance == null) {
+            instance = new TransferMetrics();
+        }
+        return instance;
+    }
+
+    private final long createdAt = System.currentTimeMillis();
+
+    private final Counters uploads = new Counters();
+    private final Counters downloads = new Counters();
+
+    private final LinkedList<Transfer> activeTransfers = new LinkedList<Transfer>();
+    private final LinkedList<Transfer> recentTransfers = new LinkedList<Transfer>();
+
+    // Response sizes of the API calls, by call name
+    private final TreeMap<String, ApiCounters> apiCounters = new TreeMap<String, ApiCounters>();
+
+    private TransferMetrics() {
+    }
+
+    /**
+     * Create the recorder of a new transfer. The queue wait starts now.
+     */
+    public Transfer newTransfer(boolean upload, String name) {
+        Transfer t = new Transfer(upload, name);
+        synchronized (activeTransfers) {
+            activeTransfers.add(t);
+        }
+        return t;
+    }
+
+    private void onTransferDone(Transfer t) {
+        synchronized (activeTransfers) {
+            activeTransfers.remove(t);
+            recentTransfers.addFirst(t);
+            if (recentTransfers.size() > MAX_RECENT_TRANSFERS) {
+                recentTransfers.removeLast();
+            }
+        }
+    }
+
+    private static class ApiCounters {
+        long responses = 0;
+        long compressedBytes = 0;
+        long rawBytes = 0;
+    }
+
+    /**
+     * Record the size of an API response, as received and once decompressed
+     */
+    public void onApiResponse(String call, long compressedBytes, long rawBytes) {
+        synchronized (apiCounters) {
+            ApiCounters c = apiCounters.get(call);
+            if (c == null) {
+                c = new ApiCounters();
+                apiCounters.put(call, c);
+            }
+            c.responses++;
+            c.compressedBytes += compressedBytes;
+            c.rawBytes += rawBytes;
+        }
+    }
+
+    /**
+     * Bytes per second over a moving window of one second buckets.
+     */
+    public static class ThroughputWindow {
+        private final long[] buckets = new long[WINDOW_SECONDS];
+        private long lastSecond = 0;
+
+        public synchronized void add(long bytes, long now) {
+            advance(now / 1000);
+            buckets[(int)(lastSecond % WINDOW_SECONDS)] += bytes;
+        }
+
+        public synchronized long getBytesPerSecond(long now) {
+            advance(now / 1000);
+            long total = 0;
+            for (long b : buckets) {
+                total += b;
+            }
+            return total / WINDOW_SECONDS;
+        }
+
+        // Clear the buckets of the seconds elapsed since the last update
+        private void advance(long second) {
+            if (second <= lastSecond) {
+                return;
+            }
+            long elapsed = Math.min(second - lastSecond, WINDOW_SECONDS);
+            for (long i = 1; i <= elapsed; i++) {
+                buckets[(int)((lastSecond + i) % WINDOW_SECONDS)] = 0;
+            }
+            lastSecond = second;
+        }
+    }
+
+    /**
+     * Aggregated counters of one transfer direction.
+     */
+    private static class Counters {
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong finished = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong queueWaitMillis = new AtomicLong();
+        final AtomicLong queueWaitCount = new AtomicLong();
+        final AtomicLong linkWaitMillis = new AtomicLong();
+        final AtomicLong linkWaitCount = new AtomicLong();
+        final AtomicLong firstByteMillis = new AtomicLong();
+        final AtomicLong firstByteCount = new AtomicLong();
+        final ThroughputWindow window = new ThroughputWindow();
+
+        void dump(StringBuilder sb, long now) {
+            sb.append("  transfers: ").append(finished.get()).append(" finished, ")
+                .append(failed.get()).append(" failed, ")
+                .append(retries.get()).append(" retries\n");
+            sb.append("  bytes: ").append(Utils.readableFileSize(bytes.get())).append("\n");
+            sb.append("  throughput: ").append(Utils.readableFileSize(window.getBytesPerSecond(now)))
+                .append("/s (last ").append(WINDOW_SECONDS).append("s)\n");
+            sb.append("  avg queue wait: ").append(average(queueWaitMillis, queueWaitCount)).append(" ms\n");
+            sb.append("  avg link wait: ").append(average(linkWaitMillis, linkWaitCount)).append(" ms\n");
+            sb.append("  avg time to first byte: ").append(average(firstByteMillis, firstByteCount)).append(" ms\n");
+        }
+
+        private static long average(AtomicLong total, AtomicLong count) {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / n;
+        }
+    }
+
+    /**
+     * Metrics of a single transfer. A transfer keeps the same recorder
+     * across automatic retries.
+     */
+    public class Transfer {
+        private final boolean upload;
+        private final String name;
+        private final Counters counters;
+        private final ThroughputWindow window = new ThroughputWindow();
+
+        private final long queuedAt;
+        private volatile long startedAt = 0;
+        private volatile long requestedAt = 0;
+        private volatile long firstByteAt = 0;
+        private volatile long finishedAt = 0;
+        private volatile long linkWaitMillis = 0;
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile int retries = 0;
+        private volatile boolean success = false;
+
+        private Transfer(boolean upload, String name) {
+            this.upload = upload;
+            this.name = name;
+            this.counters = upload ? uploads : downloads;
+            this.queuedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * The transfer leaves the queue. Only the first start is counted as
+         * queue wait, the time before a retry is backoff.
+         */
+        public void onStarted() {
+            if (startedAt != 0) {
+                return;
+            }
+            startedAt = System.currentTimeMillis();
+            counters.queueWaitMillis.addAndGet(startedAt - queuedAt);
+            counters.queueWaitCount.incrementAndGet();
+        }
+
+        public void onLinkWait(long millis) {
+            linkWaitMillis += millis;
+            counters.linkWaitMillis.addAndGet(millis);
+            counters.linkWaitCount.incrementAndGet();
+        }
+
+        /**
+         * The request carrying the file content is about to be sent.
+         * Time to first byte is counted from here.
+         */
+        public void onRequestStarted() {
+            requestedAt = System.currentTimeMillis();
+            firstByteAt = 0;
+        }
+
+        /**
+         * The server has started to respond to the request. For an upload,
+         * this comes after the whole content is sent.
+         */
+        public void onResponseStarted() {
+            long now = System.currentTimeMillis();
+            if (firstByteAt == 0 && requestedAt != 0) {
+                firstByteAt = now;
+                counters.firstByteMillis.addAndGet(now - requestedAt);
+                counters.firstByteCount.incrementAndGet();
+            }
+        }
+
+        /**
+         * Bytes of file content sent or received
+         */
+        public void onBytes(long n) {
+            long now = System.currentTimeMillis();
+            bytes.addAndGet(n);
+            window.add(n, now);
+            counters.bytes.addAndGet(n);
+            counters.window.add(n, now);
+        }
+
+        public void onRetry() {
+            retries++;
+            counters.retries.incrementAndGet();
+        }
+
+        public void onFinished(boolean success) {
+            this.success = success;
+            finishedAt = System.currentTimeMillis();
+            if (success) {
+                counters.finished.incrementAndGet();
+            } else {
+                counters.failed.incrementAndGet();
+            }
+            onTransferDone(this);
+        }
+
+        public long getBytesPerSecond() {
+            return window.getBytesPerSecond(System.currentTimeMillis());
+        }
+
+        void dump(StringBuilder sb) {
+            long now = System.currentTimeMillis();
+            sb.append(upload ? "UP   " : "DOWN ").append(name).append("\n");
+            sb.append("  ").append(Utils.readableFileSize(bytes.get()));
+            if (finishedAt == 0) {
+                sb.append(", ").append(Utils.readableFileSize(getBytesPerSecond())).append("/s");
+            } else {
+                long duration = finishedAt - (startedAt != 0 ? startedAt : queuedAt);
+                sb.append(" in ").append(duration).append(" ms");
+                sb.append(success ? ", ok" : ", failed");
+            }
+            sb.append("\n  queue ").append(startedAt != 0 ? startedAt - queuedAt : now - queuedAt).append(" ms");
+            sb.append(", link ").append(linkWaitMillis).append(" ms");
+            if (firstByteAt != 0) {
+                sb.append(", ttfb ").append(firstByteAt - requestedAt).append(" ms");
+            }
+            sb.append(", retries ").append(retries).append("\n");
+        }
+    }
+
+    /**
+     * A human readable report of all metrics, for the diagnostics screen
+     * and the exported file.
+     */
+    public String dump() {
+        long now = System.currentTimeMillis();
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        StringBuilder sb = new StringBuilder();
+        sb.append("Transfer metrics since ").append(fmt.format(new Date(createdAt)))
+            .append(", at ").append(fmt.format(new Date(now))).append("\n\n");
+
+        sb.append("Uploads\n");
+        uploads.dump(sb, now);
+        sb.append("\nDownloads\n");
+        downloads.dump(sb, now);
+
+        sb.append("\nAPI responses (received / decompressed)\n");
+        synchronized (apiCounters) {
+            for (Map.Entry<String, ApiCounters> entry : apiCounters.entrySet()) {
+                ApiCounters c = entry.getValue();
+                sb.append("  ").append(entry.getKey()).append(": ").append(c.responses)
+                    .append(" calls, ").append(Utils.readableFileSize(c.compressedBytes))
+                    .append(" / ").append(Utils.readableFileSize(c.rawBytes)).append("\n");
+            }
+        }
+
+        List<Transfer> active;
+        List<Transfer> recent;
+        synchronized (activeTransfers) {
+            active = new ArrayList<Transfer>(activeTransfers);
+            recent = new ArrayList<Transfer>(recentTransfers);
+        }
+
+        sb.append("\nActive transfers (").append(active.size()).append(")\n");
+        for (Transfer t : active) {
+            t.dump(sb);
+        }
+        sb.append("\nRecent transfers (").append(recent.size()).append(")\n");
+        for (Transfer t : recent) {
+            t.dump(sb);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,207 @@
+package com.wingufile.wingudroid2;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.wingufile.wingudroid2.account.Account;
+
+/**
+ * Per account rules deciding when bulk transfers (uploads) may use the
+ * network, and whether they wait for the device to be charging.
+ * Interactive downloads are not subject to them.
+ *
+ * The policy and the metered data used today are stored in a shared
+ * preference file of the account.
+ */
+public class TransferPolicy {
+
+    private static final String KEY_BULK_ONLY_UNMETERED = "bulk_only_unmetered";
+    private static final String KEY_METERED_DAILY_LIMIT = "metered_daily_limit_mb";
+    private static final String KEY_PAUSE_ROAMING = "pause_roaming";
+    private static final String KEY_BULK_ONLY_CHARGING = "bulk_only_charging";
+    private static final String KEY_RESIZE_PHOTOS_MAX_PX = "resize_photos_max_px";
+    private static final String KEY_METERED_USAGE_DAY = "metered_usage_day";
+    private static final String KEY_METERED_USAGE_BYTES = "metered_usage_bytes";
+
+    private static final long MB = 1024 * 1024;
+
+    // Serializes the updates of the metered usage, which is read and
+    // written from the transfer threads
+    private static final Object usageLock = new Object();
+
+    private SharedPreferences prefs;
+
+    // Only transfer on Wi-Fi or other unmetered networks
+    public boolean bulkOnlyOnUnmetered;
+    // Max data transferred per day on metered networks, 0 for no limit
+    public int meteredDailyLimitMB;
+    public boolean pauseWhileRoaming;
+    // Only transfer while the device is plugged in
+    public boolean bulkOnlyWhileCharging;
+    // Downscale uploaded photos to this many pixels on their longest side,
+    // 0 to upload the originals
+    public int resizePhotosMaxPx;
+
+    private TransferPolicy(SharedPreferences prefs) {
+        this.prefs = prefs;
+        bulkOnlyOnUnmetered = prefs.getBoolean(KEY_BULK_ONLY_UNMETERED, false);
+        meteredDailyLimitMB = prefs.getInt(KEY_METERED_DAILY_LIMIT, 0);
+        pauseWhileRoaming = prefs.getBoolean(KEY_PAUSE_ROAMING, false);
+        bulkOnlyWhileCharging = prefs.getBoolean(KEY_BULK_ONLY_CHARGING, false);
+        resizePhotosMaxPx = prefs.getInt(KEY_RESIZE_PHOTOS_MAX_PX, 0);
+    }
+
+    public static TransferPolicy getPolicy(Account account) {
+        Context context = SeadroidApplication.getAppContext();
+        String name = "transfer-" + (account.server + account.email).hashCode();
+        return new TransferPolicy(context.getSharedPreferences(name, 0));
+    }
+
+    public void save() {
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putBoolean(KEY_BULK_ONLY_UNMETERED, bulkOnlyOnUnmetered);
+        editor.putInt(KEY_METERED_DAILY_LIMIT, meteredDailyLimitMB);
+        editor.putBoolean(KEY_PAUSE_ROAMING, pauseWhileRoaming);
+        editor.putBoolean(KEY_BULK_ONLY_CHARGING, bulkOnlyWhileCharging);
+        editor.putInt(KEY_RESIZE_PHOTOS_MAX_PX, resizePhotosMaxPx);
+        editor.commit();
+    }
+
+    private static String today() {
+        return new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+    }
+
+    /**
+     * The number of bytes transferred on metered networks today
+     */
+    public long getMeteredUsageToday() {
+        if (!today().equals(prefs.getString(KEY_METERED_USAGE_DAY, ""))) {
+            return 0;
+        }
+        return prefs.getLong(KEY_METERED_USAGE_BYTES, 0);
+    }
+
+    public void addMeteredUsage(long bytes) {
+        synchronized (usageLock) {
+            setMeteredUsageToday(getMeteredUsageToday() + bytes);
+        }
+    }
+
+    private void setMeteredUsageToday(long used) {
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putString(KEY_METERED_USAGE_DAY, today());
+        editor.putLong(KEY_METERED_USAGE_BYTES, used);
+        editor.commit();
+    }
+
+    /**
+     * Bytes counted against the metered usage of a day before they are
+     * transferred
+     */
+    public static class Reservation {
+        private final String day;
+        private final long bytes;
+
+        private Reservation(String day, long bytes) {
+            this.day = day;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Check the policy for a bulk transfer which is starting now. If it is
+     * allowed on a metered network, its size is counted in today's usage
+     * at once, so that the transfers running at the same time can't go
+     * over the daily limit together.
+     *
+     * @return the reservation, to give back with {@link #release} for the
+     *         bytes which are not transferred, or null if the transfer must
+     *         wait
+     */
+    public Reservation reserveBulkTransfer(long size) {
+        synchronized (usageLock) {
+            if (!allowsBulkTransfer(size)) {
+                return null;
+            }
+            if (!Utils.isNetworkMetered()) {
+                return new Reservation(today(), 0);
+            }
+            setMeteredUsageToday(getMeteredUsageToday() + size);
+            return new Reservation(today(), size);
+        }
+    }
+
+    /**
+     * Give back a whole reservation, for a transfer which has not happened
+     */
+    public void release(Reservation reservation) {
+        giveBack(reservation, reservation.bytes);
+    }
+
+    /**
+     * Give back the part of a reservation which has not been transferred
+     */
+    public void settle(Reservation reservation, long transferred) {
+        giveBack(reservation, reservation.bytes - transferred);
+    }
+
+    private void giveBack(Reservation reservation, long bytes) {
+        bytes = Math.min(bytes, reservation.bytes);
+        if (bytes <= 0) {
+            return;
+        }
+        synchronized (usageLock) {
+            if (!reservation.day.equals(today())) {
+                // counted in the usage of another day
+                return;
+            }
+            setMeteredUsageToday(Math.max(0, getMeteredUsageToday() - bytes));
+        }
+    }
+
+    /**
+     * Tell if a bulk transfer of the given size may start on the current
+     * network.
+     */
+    public boolean allowsBulkTransfer(long size) {
+        return size <= getBulkTransferAllowance();
+    }
+
+    /**
+     * The largest bulk transfer which may start on the current network, to
+     * check several transfers against one reading of the network state.
+     *
+     * @return the size in bytes, Long.MAX_VALUE if there is no limit, or -1
+     *         if no bulk transfer may start
+     */
+    public long getBulkTransferAllowance() {
+        if (!Utils.isNetworkOn()) {
+            return -1;
+        }
+
+        if (pauseWhileRoaming && Utils.isNetworkRoaming()) {
+            return -1;
+        }
+
+        if (bulkOnlyWhileCharging && !Utils.isCharging()) {
+            return -1;
+        }
+
+        if (Utils.isNetworkMetered()) {
+            if (bulkOnlyOnUnmetered) {
+                return -1;
+            }
+            long used = getMeteredUsageToday();
+            // A file larger than the whole limit would never fit, it goes
+            // as the first transfer of the day
+            if (meteredDailyLimitMB > 0 && used > 0) {
+                return Math.max(-1, meteredDailyLimitMB * MB - used);
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+}
@@ -1,28 +1,61 @@
 package com.wingufile.wingudroid2;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.ConnectivityManager;
+import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.provider.MediaStore;
 import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+import android.widget.Toast;
 
 import com.wingufile.wingudroid2.TransferManager.DownloadTaskInfo;
 import com.wingufile.wingudroid2.TransferManager.TransferListener;
 import com.wingufile.wingudroid2.TransferManager.UploadTaskInfo;
 import com.wingufile.wingudroid2.account.Account;
+import com.wingufile.wingudroid2.account.AccountManager;
 
 public class TransferService extends Service implements TransferListener {
 
-    @SuppressWarnings("unused")
     private static final String DEBUG_TAG = "TransferService";
 
     public static final String BROADCAST_ACTION =
             "com.wingufile.wingudroid.TX_BROADCAST";
 
+    // Sent with startService() when the transfer policy of an account is changed
+    public static final String ACTION_POLICY_CHANGED =
+            "com.wingufile.wingudroid.TX_POLICY_CHANGED";
+
+    // Sent with startService() when the camera upload of an account is enabled
+    public static final String ACTION_CAMERA_UPLOAD_CHANGED =
+            "com.wingufile.wingudroid.TX_CAMERA_UPLOAD_CHANGED";
+
+    // Wait for the camera app to be done with a new photo before scanning
+    private static final long CAMERA_SCAN_DELAY = 3000;
+
     private final IBinder mBinder = new TransferBinder();
     private TransferManager txManager;
+    private ConnectivityReceiver mConnectivityReceiver;
+    private PowerReceiver mPowerReceiver;
+    private ContentObserver mImagesObserver;
+    private final Handler mHandler = new Handler();
+    private CameraScanTask mCameraScan;
+    // a change has been seen during the running scan
+    private boolean mCameraRescan;
+    // the photos left pending by the previous run of the service have been
+    // queued again
+    private boolean mCameraPendingQueued;
 
     public static final String BROADCAST_FILE_DOWNLOAD_SUCCESS = "downloaded";
     public static final String BROADCAST_FILE_DOWNLOAD_FAILED = "downloadFailed";
@@ -37,18 +70,173 @@ public class TransferService extends Service implements TransferListener {
     public void onCreate() {
         txManager = new TransferManager();
         txManager.setListener(this);
+
+        mConnectivityReceiver = new ConnectivityReceiver();
+        registerReceiver(mConnectivityReceiver,
+                         new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        mPowerReceiver = new PowerReceiver();
+        registerReceiver(mPowerReceiver, new IntentFilter(Intent.ACTION_POWER_CONNECTED));
+
+        mImagesObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                scheduleCameraScan();
+            }
+        };
+        getContentResolver().registerContentObserver(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, mImagesObserver);
+
+        // the photos taken while the service was not running
+        scanCameraRoll();
     }
 
     @Override
     public void onDestroy() {
+        unregisterReceiver(mConnectivityReceiver);
+        unregisterReceiver(mPowerReceiver);
+        getContentResolver().unregisterContentObserver(mImagesObserver);
+        mHandler.removeCallbacks(mCameraScanStarter);
+        if (mCameraScan != null) {
+            mCameraScan.cancel(true);
+        }
         txManager.unsetListener();
     }
 
+    // Wake up the transfers waiting for the network, or for a network
+    // allowed by their transfer policy
+    private class ConnectivityReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Utils.isNetworkOn()) {
+                txManager.resumeWaitingTasks();
+            }
+        }
+    }
+
+    // Wake up the transfers waiting for the device to be charging
+    private class PowerReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            txManager.resumeWaitingTasks();
+        }
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_POLICY_CHANGED.equals(intent.getAction())) {
+            txManager.resumeWaitingTasks();
+        } else if (intent != null && ACTION_CAMERA_UPLOAD_CHANGED.equals(intent.getAction())) {
+            scanCameraRoll();
+        }
         return START_STICKY;
     }
 
+    private final Runnable mCameraScanStarter = new Runnable() {
+        @Override
+        public void run() {
+            scanCameraRoll();
+        }
+    };
+
+    /**
+     * Scan the camera roll a little after the last change of MediaStore, so
+     * that a burst of changes leads to one scan
+     */
+    private void scheduleCameraScan() {
+        mHandler.removeCallbacks(mCameraScanStarter);
+        mHandler.postDelayed(mCameraScanStarter, CAMERA_SCAN_DELAY);
+    }
+
+    private void scanCameraRoll() {
+        if (mCameraScan != null) {
+            mCameraRescan = true;
+            return;
+        }
+        mCameraRescan = false;
+        mCameraScan = new CameraScanTask(!mCameraPendingQueued);
+        mCameraPendingQueued = true;
+        ConcurrentAsyncTask.execute(mCameraScan);
+    }
+
+    /**
+     * Query the new photos of the accounts with camera upload enabled, and
+     * queue their upload. The uploads follow the transfer policy of the
+     * account like any other. The first scan of the service also queues the
+     * photos whose upload had not succeeded when it last stopped.
+     */
+    private class CameraScanTask extends AsyncTask<Void, Void, List<CameraUpload.Page>> {
+        private final boolean queuePending;
+        private final List<CameraUpload> settings = new ArrayList<CameraUpload>();
+        // the pages of pending photos, the others are new photos
+        private final List<CameraUpload.Page> pendingPages = new ArrayList<CameraUpload.Page>();
+
+        CameraScanTask(boolean queuePending) {
+            this.queuePending = queuePending;
+        }
+
+        @Override
+        protected List<CameraUpload.Page> doInBackground(Void... params) {
+            List<CameraUpload.Page> pages = new ArrayList<CameraUpload.Page>();
+            AccountManager accountManager = new AccountManager(TransferService.this);
+            for (Account account : accountManager.getAccountList()) {
+                CameraUpload cameraUpload = CameraUpload.getSettings(account);
+                if (!cameraUpload.isEnabled()) {
+                    continue;
+                }
+                if (queuePending) {
+                    CameraUpload.Page page = cameraUpload.queryPending();
+                    settings.add(cameraUpload);
+                    pages.add(page);
+                    pendingPages.add(page);
+                }
+                for (CameraUpload.Page page : cameraUpload.queryNewPhotos(getContentResolver())) {
+                    settings.add(cameraUpload);
+                    pages.add(page);
+                }
+            }
+            return pages;
+        }
+
+        @Override
+        protected void onPostExecute(List<CameraUpload.Page> pages) {
+            mCameraScan = null;
+            for (int i = 0; i < pages.size(); i++) {
+                CameraUpload cameraUpload = settings.get(i);
+                CameraUpload.Page page = pages.get(i);
+                CameraUpload current = CameraUpload.getSettings(cameraUpload.account);
+                if (!current.isEnabled() || !current.repoID.equals(cameraUpload.repoID)) {
+                    // changed by the user during the scan
+                    continue;
+                }
+                // saved before the upload is queued, so a photo is pending
+                // as soon as it is behind the watermark
+                if (pendingPages.contains(page)) {
+                    current.retainPending(page);
+                } else {
+                    current.addPending(page);
+                }
+                if (!page.paths.isEmpty()) {
+                    txManager.addUploadTasks(current.account, current.repoID,
+                                             current.repoName, current.dir,
+                                             page.paths);
+                }
+            }
+            if (!pages.isEmpty()) {
+                Log.d(DEBUG_TAG, "camera upload queued " + pages.size() + " pages");
+            }
+
+            if (mCameraRescan) {
+                scanCameraRoll();
+            }
+        }
+
+        @Override
+        protected void onCancelled() {
+            mCameraScan = null;
+        }
+    }
+
     public class TransferBinder extends Binder {
         public TransferService getService() {
             return TransferService.this;
@@ -66,6 +254,15 @@ public class TransferService extends Service implements TransferListener {
         return txManager.addUploadTask(account, repoID, repoName, dir, filePath, isUpdate);
     }
 
+    /**
+     * Upload several new files to the same dir. Returns at once, the tasks
+     * are added once the files have been stat'ed in the background.
+     */
+    public void addUploadTasks(Account account, String repoID, String repoName, String dir,
+                               List<String> filePaths) {
+        txManager.addUploadTasks(account, repoID, repoName, dir, filePaths);
+    }
+
     public int addDownloadTask(Account account,
                                String repoName,
                                String repoID,
@@ -108,8 +305,18 @@ public class TransferService extends Service implements TransferListener {
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
     }
 
+    // A camera photo is no longer pending once uploaded, or if the user has
+    // cancelled its upload
+    private void removeCameraPending(int taskID) {
+        UploadTaskInfo info = txManager.getUploadTaskInfo(taskID);
+        if (info != null && !info.isUpdate) {
+            CameraUpload.getSettings(info.account).removePending(info.localFilePath);
+        }
+    }
+
     @Override
     public void onFileUploaded(int taskID) {
+        removeCameraPending(taskID);
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_UPLOAD_SUCCESS)
             .putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
@@ -117,6 +324,7 @@ public class TransferService extends Service implements TransferListener {
 
     @Override
     public void onFileUploadCancelled(int taskID) {
+        removeCameraPending(taskID);
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_UPLOAD_CANCELLED)
             .putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
@@ -124,6 +332,14 @@ public class TransferService extends Service implements TransferListener {
 
     @Override
     public void onFileUploadFailed(int taskID) {
+        UploadTaskInfo info = txManager.getUploadTaskInfo(taskID);
+        if (info != null && !info.isUpdate
+                && CameraUpload.getSettings(info.account).onUploadFailed(info.localFilePath, info.err)) {
+            Log.w(DEBUG_TAG, "camera upload given up: " + info.localFilePath);
+            String name = new File(info.localFilePath).getName();
+            Toast.makeText(this, getString(R.string.camera_upload_given_up, name),
+                           Toast.LENGTH_LONG).show();
+        }
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_FILE_UPLOAD_FAILED)
             .putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
@@ -0,0 +1,121 @@
+package com.wingufile.wingudroid2;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import com.actionbarsherlock.app.SherlockActivity;
+import com.wingufile.wingudroid2.account.Account;
+
+/**
+ * Edit the transfer policy of an account, and the bandwidth limits. Changes
+ * are saved when the user leaves the screen.
+ */
+public class TransferSettingsActivity extends SherlockActivity {
+
+    @SuppressWarnings("unused")
+    private static final String DEBUG_TAG = "TransferSettingsActivity";
+
+    private CheckBox bulkOnlyUnmeteredCheckBox;
+    private CheckBox pauseRoamingCheckBox;
+    private CheckBox onlyChargingCheckBox;
+    private EditText meteredLimitText;
+    private TextView meteredUsageText;
+    private EditText resizePhotosText;
+    private CheckBox cameraUploadCheckBox;
+    private EditText uploadLimitText;
+    private EditText downloadLimitText;
+    private CheckBox adaptiveCheckBox;
+
+    private Account account;
+    private TransferPolicy policy;
+    private CameraUpload cameraUpload;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.transfer_settings);
+
+        bulkOnlyUnmeteredCheckBox = (CheckBox)findViewById(R.id.bulk_only_unmetered_checkbox);
+        pauseRoamingCheckBox = (CheckBox)findViewById(R.id.pause_roaming_checkbox);
+        onlyChargingCheckBox = (CheckBox)findViewById(R.id.bulk_only_charging_checkbox);
+        meteredLimitText = (EditText)findViewById(R.id.metered_daily_limit);
+        meteredUsageText = (TextView)findViewById(R.id.metered_usage_today);
+        resizePhotosText = (EditText)findViewById(R.id.resize_photos_max_px);
+        cameraUploadCheckBox = (CheckBox)findViewById(R.id.camera_upload_checkbox);
+        uploadLimitText = (EditText)findViewById(R.id.upload_limit);
+        downloadLimitText = (EditText)findViewById(R.id.download_limit);
+        adaptiveCheckBox = (CheckBox)findViewById(R.id.adaptive_bandwidth_checkbox);
+
+        account = (Account)getIntent().getParcelableExtra("account");
+        policy = TransferPolicy.getPolicy(account);
+        cameraUpload = CameraUpload.getSettings(account);
+
+        bulkOnlyUnmeteredCheckBox.setChecked(policy.bulkOnlyOnUnmetered);
+        pauseRoamingCheckBox.setChecked(policy.pauseWhileRoaming);
+        onlyChargingCheckBox.setChecked(policy.bulkOnlyWhileCharging);
+        if (policy.meteredDailyLimitMB > 0) {
+            meteredLimitText.setText(String.valueOf(policy.meteredDailyLimitMB));
+        }
+        meteredUsageText.setText(getString(R.string.metered_usage_today) + " "
+                                 + Utils.readableFileSize(policy.getMeteredUsageToday()));
+        if (policy.resizePhotosMaxPx > 0) {
+            resizePhotosText.setText(String.valueOf(policy.resizePhotosMaxPx));
+        }
+        // Camera upload is enabled from a dir of the browser, it can only
+        // be disabled here
+        if (cameraUpload.isEnabled()) {
+            cameraUploadCheckBox.setText(getString(R.string.camera_upload_to) + " "
+                                         + cameraUpload.repoName + cameraUpload.dir);
+            cameraUploadCheckBox.setChecked(true);
+            cameraUploadCheckBox.setVisibility(View.VISIBLE);
+        }
+
+        if (BandwidthLimiter.getUploadLimitKBps() > 0) {
+            uploadLimitText.setText(String.valueOf(BandwidthLimiter.getUploadLimitKBps()));
+        }
+        if (BandwidthLimiter.getDownloadLimitKBps() > 0) {
+            downloadLimitText.setText(String.valueOf(BandwidthLimiter.getDownloadLimitKBps()));
+        }
+        adaptiveCheckBox.setChecked(BandwidthLimiter.isAdaptive());
+    }
+
+    private static int parseNumber(EditText text) {
+        try {
+            return Integer.parseInt(text.getText().toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        savePolicy();
+    }
+
+    private void savePolicy() {
+        policy.bulkOnlyOnUnmetered = bulkOnlyUnmeteredCheckBox.isChecked();
+        policy.pauseWhileRoaming = pauseRoamingCheckBox.isChecked();
+        policy.bulkOnlyWhileCharging = onlyChargingCheckBox.isChecked();
+        policy.meteredDailyLimitMB = parseNumber(meteredLimitText);
+        policy.resizePhotosMaxPx = parseNumber(resizePhotosText);
+        policy.save();
+
+        if (cameraUpload.isEnabled() && !cameraUploadCheckBox.isChecked()) {
+            cameraUpload.disable();
+        }
+
+        BandwidthLimiter.saveSettings(parseNumber(uploadLimitText),
+                                      parseNumber(downloadLimitText),
+                                      adaptiveCheckBox.isChecked());
+
+        // Let the waiting transfers check the new policy
+        Intent intent = new Intent(this, TransferService.class);
+        intent.setAction(TransferService.ACTION_POLICY_CHANGED);
+        startService(intent);
+    }
+}
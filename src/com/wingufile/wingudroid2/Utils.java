@@ -11,6 +11,8 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -25,8 +27,12 @@ import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
@@ -158,6 +164,25 @@ public class Utils {
         }
     }
 
+    /**
+     * @return the hex MD5 digest of a string, or null if MD5 is not available
+     */
+    public static String md5(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(content.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
     public static String NOGROUP = "$nogroup";
 
     public static TreeMap<String, List<SeafRepo>> groupRepos(List<SeafRepo> repos) {
@@ -253,6 +278,44 @@ public class Utils {
             return false;
     }
 
+    /**
+     * Tell if the active network may cost the user money, e.g. a mobile
+     * data connection.
+     */
+    public static boolean isNetworkMetered() {
+        ConnectivityManager connMgr = (ConnectivityManager)
+                SeadroidApplication.getAppContext().getSystemService(
+                        Context.CONNECTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return connMgr.isActiveNetworkMetered();
+        }
+
+        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+        if (networkInfo == null) {
+            return false;
+        }
+
+        int type = networkInfo.getType();
+        return type != ConnectivityManager.TYPE_WIFI
+            && type != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    public static boolean isNetworkRoaming() {
+        ConnectivityManager connMgr = (ConnectivityManager)
+                SeadroidApplication.getAppContext().getSystemService(
+                        Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+
+        return networkInfo != null && networkInfo.isRoaming();
+    }
+
+    public static boolean isCharging() {
+        // The battery broadcast is sticky, no receiver is needed to read it
+        Intent battery = SeadroidApplication.getAppContext().registerReceiver(
+                null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
     public static String pathJoin (String first, String... rest) {
         String path = first;
         for (String b: rest) {
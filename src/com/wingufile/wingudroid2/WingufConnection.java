@@ -1,5 +1,6 @@
 package com.wingufile.wingudroid2;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -7,19 +8,33 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.net.HttpURLConnection;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.content.Context;
+import android.content.Intent;
 import android.util.Log;
 
 import com.github.kevinsawicki.http.HttpRequest;
 import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
 import com.wingufile.wingudroid2.account.Account;
+import com.wingufile.wingudroid2.account.AccountManager;
 import com.wingufile.wingudroid2.data.DataManager;
+import com.wingufile.wingudroid2.data.DataManager.BatchProgressMonitor;
 import com.wingufile.wingudroid2.data.DataManager.ProgressMonitor;
 import com.wingufile.wingudroid2.data.TwoTuple;
 
@@ -41,17 +56,127 @@ public class SeafConnection {
         return account;
     }
 
+    private static TransferMetrics.Transfer getMetrics(ProgressMonitor monitor) {
+        return monitor != null ? monitor.getMetrics() : null;
+    }
+
+    /**
+     * The metrics recorder of a file of a batch, the recorder of the whole
+     * request if the monitor does not tell the files apart
+     */
+    private static TransferMetrics.Transfer getMetrics(ProgressMonitor monitor, int index) {
+        if (monitor instanceof BatchProgressMonitor) {
+            return ((BatchProgressMonitor)monitor).getMetrics(index);
+        }
+        return getMetrics(monitor);
+    }
+
+    private String getAccountKey() {
+        return account.server + "\n" + account.email;
+    }
+
+    /**
+     * The token of the account, or a newer one if another connection has
+     * logged in again since this connection was created
+     */
+    private String getAuthToken() {
+        String latest = latestTokens.get(getAccountKey());
+        if (latest == null) {
+            return account.token;
+        }
+        account.token = latest;
+        return latest;
+    }
+
     private HttpRequest prepareApiGetRequest(String apiPath, Map<String, ?> params) throws IOException {
         return HttpRequest.get(account.server + apiPath, params, true).
                     trustAllCerts().trustAllHosts().
                     readTimeout(30000).connectTimeout(15000).
-                    header("Authorization", "Token " + account.token);
+                    header("Authorization", "Token " + getAuthToken()).
+                    header("Accept-Encoding", ACCEPT_ENCODING);
     }
 
     private HttpRequest prepareApiGetRequest(String apiPath) throws IOException {
         return prepareApiGetRequest(apiPath, null);
     }
 
+    /**
+     * JSON responses of the API are compressed. Since the header is set
+     * explicitly, HttpURLConnection leaves the decoding to
+     * {@link #readApiResponse}. File downloads do not send it, so they stay
+     * byte-exact.
+     */
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * Counts the bytes read from the connection, before decompression
+     */
+    private static class CountingInputStream extends InputStream {
+        private final InputStream src;
+        long count = 0;
+
+        CountingInputStream(InputStream src) {
+            this.src = src;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ret = src.read();
+            if (ret != -1) {
+                count++;
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = src.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            src.close();
+        }
+    }
+
+    /**
+     * Read the body of an API response, decompressing it while it is
+     * received, and record its compressed and raw sizes.
+     *
+     * @param call the name of the API call in the metrics
+     */
+    private static byte[] readApiResponse(HttpRequest req, String call) throws HttpRequestException {
+        CountingInputStream wire = new CountingInputStream(req.stream());
+        String encoding = req.header("Content-Encoding");
+        try {
+            InputStream in;
+            if ("gzip".equalsIgnoreCase(encoding)) {
+                in = new GZIPInputStream(wire);
+            } else if ("deflate".equalsIgnoreCase(encoding)) {
+                in = new InflaterInputStream(wire);
+            } else {
+                in = wire;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            in.close();
+
+            TransferMetrics.getInstance().onApiResponse(call, wire.count, out.size());
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new HttpRequestException(e);
+        }
+    }
+
     private HttpRequest prepareApiFileGetRequest(String url) throws HttpRequestException {
         return HttpRequest.get(url).
                 trustAllCerts().trustAllHosts().
@@ -68,10 +193,11 @@ public class SeafConnection {
                                             throws HttpRequestException {
         HttpRequest req = HttpRequest.post(account.server + apiPath, params, true).
                             trustAllCerts().trustAllHosts().
-                            connectTimeout(15000);
+                            connectTimeout(15000).
+                            header("Accept-Encoding", ACCEPT_ENCODING);
 
         if (withToken) {
-            req.header("Authorization", "Token " + account.token);
+            req.header("Authorization", "Token " + getAuthToken());
         }
 
         return req;
@@ -98,11 +224,15 @@ public class SeafConnection {
                 }
             }
 
-            String contentAsString = new String(req.bytes(), "UTF-8");
+            String contentAsString = new String(readApiResponse(req, "auth-token"), "UTF-8");
             JSONObject obj = Utils.parseJsonObject(contentAsString);
             if (obj == null)
                 return false;
             account.token = obj.getString("token");
+            latestTokens.put(getAccountKey(), account.token);
+            if (account.passwd != null) {
+                knownPasswords.put(getAccountKey(), account.passwd);
+            }
             return true;
         } catch (SeafException e) {
             throw e;
@@ -125,9 +255,186 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * The latest token of each account, shared by all connections
+     */
+    private static final ConcurrentHashMap<String, String> latestTokens =
+        new ConcurrentHashMap<String, String>();
+    /**
+     * The password of the accounts logged in since the app started. Only the
+     * token is saved in the account database, so an account loaded from it
+     * has no password: once the process has restarted, the user is sent to
+     * the login screen instead.
+     */
+    private static final ConcurrentHashMap<String, String> knownPasswords =
+        new ConcurrentHashMap<String, String>();
+    private static final ConcurrentHashMap<String, Object> loginLocks =
+        new ConcurrentHashMap<String, Object>();
+    /**
+     * The rejected token of each account the login screen has been shown
+     * for, so that the requests failing with it show the screen once
+     */
+    private static final ConcurrentHashMap<String, String> loginRequested =
+        new ConcurrentHashMap<String, String>();
+
+    /**
+     * An API request authenticated with the account token
+     */
+    private interface ApiCall<T> {
+        T call() throws SeafException;
+    }
+
+    /**
+     * Only an expired or revoked token is worth a new login. A 403 is a
+     * permission error, which the same credentials would get again.
+     */
+    private static boolean isAuthError(SeafException e) {
+        return e.getCode() == 401;
+    }
+
+    /**
+     * Run an API request. If the server rejects the token, log in again and
+     * replay the request once with the new token.
+     */
+    private <T> T withReauth(ApiCall<T> apiCall) throws SeafException {
+        String usedToken = getAuthToken();
+        try {
+            return apiCall.call();
+        } catch (SeafException e) {
+            if (!isAuthError(e) || !reauthenticate(usedToken)) {
+                throw e;
+            }
+            Log.d(DEBUG_TAG, "replay request with a new token");
+            return apiCall.call();
+        }
+    }
+
+    /**
+     * Log in again after the server has rejected a token. Concurrent
+     * requests of the same account which fail at the same time share one
+     * login: the others find the token has already been replaced.
+     *
+     * @return true if there is a new token to replay the request with
+     */
+    private boolean reauthenticate(String expiredToken) {
+        String key = getAccountKey();
+        loginLocks.putIfAbsent(key, new Object());
+        synchronized (loginLocks.get(key)) {
+            String latest = latestTokens.get(key);
+            if (latest != null && !latest.equals(expiredToken)) {
+                account.token = latest;
+                return true;
+            }
+
+            if (account.passwd == null) {
+                account.passwd = knownPasswords.get(key);
+            }
+            if (account.passwd == null) {
+                Log.d(DEBUG_TAG, "token rejected, but no password to log in again");
+                requestLogin(expiredToken);
+                return false;
+            }
+
+            try {
+                if (!realLogin()) {
+                    requestLogin(expiredToken);
+                    return false;
+                }
+            } catch (SeafException e) {
+                Log.d(DEBUG_TAG, "failed to log in again: " + e.getMessage());
+                if (e != SeafException.networkException) {
+                    requestLogin(expiredToken);
+                }
+                return false;
+            }
+
+            AccountManager accountMgr = new AccountManager(SeadroidApplication.getAppContext());
+            accountMgr.saveAccount(account);
+            return true;
+        }
+    }
+
+    /**
+     * Send the user to the login screen of the account, filled in with its
+     * server and email, once per rejected token. The new login saves the
+     * new token in the account database.
+     */
+    private void requestLogin(String expiredToken) {
+        String key = getAccountKey();
+        if (expiredToken == null || expiredToken.equals(loginRequested.put(key, expiredToken))) {
+            return;
+        }
+        Context context = SeadroidApplication.getAppContext();
+        Intent intent = new Intent(context, AccountDetailActivity.class);
+        intent.putExtra("server", account.server);
+        intent.putExtra("email", account.email);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        context.startActivity(intent);
+    }
+
+    /**
+     * The response of a conditional GET request, with the validators to
+     * send in the next request
+     */
+    public static class ConditionalResponse {
+        /** null if the content has not been modified */
+        public final String content;
+        public final String etag;
+        public final String lastModified;
+
+        ConditionalResponse(String content, String etag, String lastModified) {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isModified() {
+            return content != null;
+        }
+    }
+
     public String getRepos() throws SeafException {
+        return getRepos(null, null).content;
+    }
+
+    /**
+     * Get the repo list, unless it has not changed since the response the
+     * given validators come from.
+     *
+     * @param etag the ETag of the cached list, or null
+     * @param lastModified the Last-Modified of the cached list, or null
+     */
+    public ConditionalResponse getRepos(final String etag, final String lastModified)
+                                            throws SeafException {
+        BandwidthLimiter.onInteractiveRequestStarted();
+        try {
+            return withReauth(new ApiCall<ConditionalResponse>() {
+                @Override
+                public ConditionalResponse call() throws SeafException {
+                    return realGetRepos(etag, lastModified);
+                }
+            });
+        } finally {
+            BandwidthLimiter.onInteractiveRequestFinished();
+        }
+    }
+
+    private ConditionalResponse realGetRepos(String etag, String lastModified)
+                                                throws SeafException {
         try {
             HttpRequest req = prepareApiGetRequest("api2/repos/");
+            if (etag != null) {
+                req.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                req.header("If-Modified-Since", lastModified);
+            }
+
+            if (req.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(DEBUG_TAG, "repo list not modified");
+                return new ConditionalResponse(null, etag, lastModified);
+            }
+
             if (req.code() != 200) {
                 if (req.message() == null) {
                     throw SeafException.networkException;
@@ -136,8 +443,8 @@ public class SeafConnection {
                 }
             }
 
-            String result = new String(req.bytes(), "UTF-8");
-            return result;
+            String result = new String(readApiResponse(req, "repos"), "UTF-8");
+            return new ConditionalResponse(result, req.header("ETag"), req.header("Last-Modified"));
         } catch (SeafException e) {
             throw e;
         } catch (HttpRequestException e) {
@@ -155,7 +462,37 @@ public class SeafConnection {
      * @return A non-null TwoTuple of (dirID, content). If the local cache is up to date, the "content" is null.
      * @throws SeafException
      */
-    public TwoTuple<String, String> getDirents(String repoID, String path, String cachedDirID)
+    public TwoTuple<String, String> getDirents(String repoID, String path,
+                                               String cachedDirID) throws SeafException {
+        return getDirents(repoID, path, cachedDirID, false);
+    }
+
+    /**
+     * @param background true for a listing nobody is waiting for, like a
+     *        prefetch, which does not make the adaptive limiter slow the
+     *        transfers down
+     */
+    public TwoTuple<String, String> getDirents(final String repoID, final String path,
+                                               final String cachedDirID,
+                                               boolean background) throws SeafException {
+        if (!background) {
+            BandwidthLimiter.onInteractiveRequestStarted();
+        }
+        try {
+            return withReauth(new ApiCall<TwoTuple<String, String>>() {
+                @Override
+                public TwoTuple<String, String> call() throws SeafException {
+                    return realGetDirents(repoID, path, cachedDirID);
+                }
+            });
+        } finally {
+            if (!background) {
+                BandwidthLimiter.onInteractiveRequestFinished();
+            }
+        }
+    }
+
+    private TwoTuple<String, String> realGetDirents(String repoID, String path, String cachedDirID)
                                         throws SeafException {
         try {
             String apiPath = String.format("api2/repos/%s/dir/", repoID);
@@ -185,7 +522,7 @@ public class SeafConnection {
                 Log.d(DEBUG_TAG,
                       String.format("dir %s will be downloaded from server, latest %s, local cache %s",
                                     path, dirID, cachedDirID != null ? cachedDirID : "null"));
-                byte[] rawBytes = req.bytes();
+                byte[] rawBytes = readApiResponse(req, "dir");
                 if (rawBytes == null) {
                     throw SeafException.unknownException;
                 }
@@ -205,7 +542,18 @@ public class SeafConnection {
         }
     }
 
-    private TwoTuple<String, String> getDownloadLink(String repoID, String path) throws SeafException {
+    private TwoTuple<String, String> getDownloadLink(final String repoID, final String path)
+                                                        throws SeafException {
+        return withReauth(new ApiCall<TwoTuple<String, String>>() {
+            @Override
+            public TwoTuple<String, String> call() throws SeafException {
+                return realGetDownloadLink(repoID, path);
+            }
+        });
+    }
+
+    private TwoTuple<String, String> realGetDownloadLink(String repoID, String path)
+                                                            throws SeafException {
         try {
             String apiPath = String.format("api2/repos/%s/file/", repoID);
             Map<String, Object> params = new HashMap<String, Object>();
@@ -220,7 +568,7 @@ public class SeafConnection {
                 }
             }
 
-            String result = new String(req.bytes(), "UTF-8");
+            String result = new String(readApiResponse(req, "download-link"), "UTF-8");
             String fileID = req.header("oid");
 
             // should return "\"http://clouidio.com:8082/...\"" or "\"https://clouidio.com:8082/...\"
@@ -248,8 +596,12 @@ public class SeafConnection {
             return null;
 
         File file = new File(localPath);
+        TransferMetrics.Transfer metrics = getMetrics(monitor);
 
         try {
+            if (metrics != null) {
+                metrics.onRequestStarted();
+            }
             int i = dlink.lastIndexOf('/');
             String quoted = dlink.substring(0, i) + "/" +
                     URLEncoder.encode(dlink.substring(i+1), "UTF-8");
@@ -262,6 +614,9 @@ public class SeafConnection {
                     throw new SeafException(req.code(), req.message());
                 }
             }
+            if (metrics != null) {
+                metrics.onResponseStarted();
+            }
 
             if (monitor != null) {
                 if (req.header(HttpRequest.HEADER_CONTENT_LENGTH) == null) {
@@ -317,7 +672,12 @@ public class SeafConnection {
                                           String localPath,
                                           String cachedFileID,
                                           ProgressMonitor monitor) throws SeafException {
+        long linkRequested = System.currentTimeMillis();
         TwoTuple<String, String> ret = getDownloadLink(repoID, path);
+        TransferMetrics.Transfer metrics = getMetrics(monitor);
+        if (metrics != null) {
+            metrics.onLinkWait(System.currentTimeMillis() - linkRequested);
+        }
         String dlink = ret.getFirst();
         String fileID = ret.getSecond();
 
@@ -340,7 +700,17 @@ public class SeafConnection {
     }
 
     // set password for an encrypted repo
-    public void setPassword(String repoID, String passwd) throws SeafException {
+    public void setPassword(final String repoID, final String passwd) throws SeafException {
+        withReauth(new ApiCall<Void>() {
+            @Override
+            public Void call() throws SeafException {
+                realSetPassword(repoID, passwd);
+                return null;
+            }
+        });
+    }
+
+    private void realSetPassword(String repoID, String passwd) throws SeafException {
         try {
             HttpRequest req = prepareApiPostRequest("api2/repos/" + repoID + "/", true, null);
 
@@ -363,7 +733,16 @@ public class SeafConnection {
         }
     }
 
-    private String getUploadLink(String repoID, boolean update) throws SeafException {
+    private String getUploadLink(final String repoID, final boolean update) throws SeafException {
+        return withReauth(new ApiCall<String>() {
+            @Override
+            public String call() throws SeafException {
+                return realGetUploadLink(repoID, update);
+            }
+        });
+    }
+
+    private String realGetUploadLink(String repoID, boolean update) throws SeafException {
         try {
             String apiPath;
             if (update) {
@@ -382,7 +761,7 @@ public class SeafConnection {
                 }
             }
 
-            String result = new String(req.bytes(), "UTF-8");
+            String result = new String(readApiResponse(req, "upload-link"), "UTF-8");
             // should return "\"http://clouidio.com:8082/...\"" or "\"https://clouidio.com:8082/...\"
             if (result.startsWith("\"http")) {
                 // remove the starting and trailing quote
@@ -402,35 +781,172 @@ public class SeafConnection {
     }
 
     /**
-     * Upload a file to update an existing file
+     * Upload links are reused for all the uploads to the same repo, until
+     * they expire or the httpserver rejects them. The cache is shared by all
+     * connections, so parallel upload tasks use the same link.
      */
-    public String updateFile(String repoID, String dir, String filePath, ProgressMonitor monitor)
-                                throws SeafException {
+    private static final long UPLOAD_LINK_TTL = 10 * 60 * 1000;
+
+    private static class CachedLink {
+        final String link;
+        final long expires;
+
+        CachedLink(String link, long expires) {
+            this.link = link;
+            this.expires = expires;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, CachedLink> uploadLinks =
+        new ConcurrentHashMap<String, CachedLink>();
+    // one lock per cache key, so that only one request for a link is in flight
+    private static final ConcurrentHashMap<String, Object> uploadLinkLocks =
+        new ConcurrentHashMap<String, Object>();
+
+    private String getUploadLinkKey(String repoID, boolean update) {
+        return getAccountKey() + "\n" + repoID + (update ? "\nupdate" : "\nupload");
+    }
+
+    private String getCachedUploadLink(String repoID, boolean update) throws SeafException {
+        String key = getUploadLinkKey(repoID, update);
+        CachedLink cached = uploadLinks.get(key);
+        if (cached != null && cached.expires > System.currentTimeMillis()) {
+            return cached.link;
+        }
+
+        uploadLinkLocks.putIfAbsent(key, new Object());
+        synchronized (uploadLinkLocks.get(key)) {
+            // another task may have fetched it while we were waiting
+            cached = uploadLinks.get(key);
+            if (cached != null && cached.expires > System.currentTimeMillis()) {
+                return cached.link;
+            }
+
+            String link = getUploadLink(repoID, update);
+            uploadLinks.put(key, new CachedLink(link, System.currentTimeMillis() + UPLOAD_LINK_TTL));
+            return link;
+        }
+    }
+
+    /**
+     * Drop a cached upload link, unless it has already been replaced by a
+     * newer one
+     */
+    private void invalidateUploadLink(String repoID, boolean update, String link) {
+        String key = getUploadLinkKey(repoID, update);
+        CachedLink cached = uploadLinks.get(key);
+        if (cached != null && cached.link.equals(link)) {
+            uploadLinks.remove(key, cached);
+        }
+    }
+
+    /**
+     * The httpserver answers these codes when the access token in an upload
+     * link is unknown or has expired
+     */
+    private static boolean isExpiredLinkError(SeafException e) {
+        int code = e.getCode();
+        return code == 400 || code == 403 || code == 404;
+    }
+
+    /**
+     * Get an upload link, recording the time spent waiting for it in the
+     * metrics of the transfer
+     */
+    private String getUploadLink(String repoID, boolean update, ProgressMonitor monitor)
+                                    throws SeafException {
+        TransferMetrics.Transfer metrics = getMetrics(monitor);
+        if (metrics == null) {
+            return getCachedUploadLink(repoID, update);
+        }
+
+        long linkRequested = System.currentTimeMillis();
         try {
-            String url = getUploadLink(repoID, true);
-            return uploadFileCommon(url, repoID, dir, filePath, monitor, true);
-        } catch (SeafException e) {
-            // do again
-            String url = getUploadLink(repoID, true);
-            return uploadFileCommon(url, repoID, dir, filePath, monitor, true);
+            return getCachedUploadLink(repoID, update);
+        } finally {
+            metrics.onLinkWait(System.currentTimeMillis() - linkRequested);
         }
     }
 
     /**
-     * Upload a new file
+     * An upload request sent to an upload link
      */
-    public String uploadFile(String repoID, String dir, String filePath, ProgressMonitor monitor)
-                            throws SeafException {
+    private interface LinkUpload<T> {
+        T send(String link) throws SeafException;
+    }
+
+    private <T> T uploadWithCachedLink(String repoID, boolean update, ProgressMonitor monitor,
+                                       LinkUpload<T> upload) throws SeafException {
+        String url = null;
         try {
-            String url = getUploadLink(repoID, false);
-            return uploadFileCommon(url, repoID, dir, filePath, monitor, false);
+            url = getUploadLink(repoID, update, monitor);
+            return upload.send(url);
         } catch (SeafException e) {
+            if (e == SeafException.userCancelledException) {
+                throw e;
+            }
+            if (url != null && isExpiredLinkError(e)) {
+                invalidateUploadLink(repoID, update, url);
+            }
             // do again
-            String url = getUploadLink(repoID, false);
-            return uploadFileCommon(url, repoID, dir, filePath, monitor, false);
+            url = getUploadLink(repoID, update, monitor);
+            try {
+                return upload.send(url);
+            } catch (SeafException e2) {
+                if (isExpiredLinkError(e2)) {
+                    invalidateUploadLink(repoID, update, url);
+                }
+                throw e2;
+            }
         }
     }
 
+    /**
+     * Upload a file to update an existing file
+     */
+    public String updateFile(final String repoID, final String dir, final String filePath,
+                             final ProgressMonitor monitor) throws SeafException {
+        return uploadWithCachedLink(repoID, true, monitor, new LinkUpload<String>() {
+            @Override
+            public String send(String link) throws SeafException {
+                return uploadFileCommon(link, repoID, dir, filePath, monitor, true);
+            }
+        });
+    }
+
+    /**
+     * Upload a new file
+     */
+    public String uploadFile(final String repoID, final String dir, final String filePath,
+                             final ProgressMonitor monitor) throws SeafException {
+        return uploadWithCachedLink(repoID, false, monitor, new LinkUpload<String>() {
+            @Override
+            public String send(String link) throws SeafException {
+                return uploadFileCommon(link, repoID, dir, filePath, monitor, false);
+            }
+        });
+    }
+
+    /**
+     * Upload several new files to the same dir in one request.
+     *
+     * The progress reported to the monitor is the total of all the files, in
+     * the given order.
+     *
+     * @return the IDs of the new files, in the same order as filePaths. An
+     * entry is null if the server did not return an ID for the file.
+     */
+    public List<String> uploadFiles(final String repoID, final String dir,
+                                    final List<String> filePaths,
+                                    final ProgressMonitor monitor) throws SeafException {
+        return uploadWithCachedLink(repoID, false, monitor, new LinkUpload<List<String>>() {
+            @Override
+            public List<String> send(String link) throws SeafException {
+                return uploadFilesCommon(link, dir, filePaths, monitor);
+            }
+        });
+    }
+
     private static final String CRLF = "\r\n";
     private static final String TWO_HYPENS = "--";
     private static final String BOUNDARY = "----SeafileAndroidBound$_$";
@@ -448,6 +964,10 @@ public class SeafConnection {
                 throw new SeafException(SeafException.OTHER_EXCEPTION, "File not exists");
             }
 
+            TransferMetrics.Transfer metrics = getMetrics(monitor);
+            if (metrics != null) {
+                metrics.onRequestStarted();
+            }
 
             HttpRequest req = HttpRequest.post(link).
                                 trustAllCerts().trustAllHosts().
@@ -493,16 +1013,8 @@ public class SeafConnection {
                 totalLen += dirParam.length;
             }
 
-            // line 1
-            String l1 = TWO_HYPENS + BOUNDARY + CRLF;
-            // line 2,
-            byte[] l2 = new String("Content-Disposition: form-data; name=\"file\";filename=\""
-                    + file.getName() + "\"" + CRLF).getBytes("UTF-8");
-            // line 3
-            String l3 = "Content-Type: text/plain" + CRLF;
-            // line 4
-            String l4 = CRLF;
-            totalLen += l1.length() + l2.length + l3.length() + l4.length() + file.length() + 2;
+            byte[] fileHeader = getFilePartHeader(file);
+            totalLen += fileHeader.length + file.length() + 2;
 
             String end = TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF;
             totalLen += end.length();
@@ -517,10 +1029,7 @@ public class SeafConnection {
             } else {
                 req.send(dirParam);
             }
-            req.send(l1);
-            req.send(l2);
-            req.send(l3);
-            req.send(l4);
+            req.send(fileHeader);
 
             if (monitor != null) {
                 req.bufferSize(MonitoredFileInputStream.BUFFER_SIZE);
@@ -538,6 +1047,9 @@ public class SeafConnection {
                 } else {
                     throw new SeafException(req.code(), req.message());
                 }
+            if (metrics != null) {
+                metrics.onResponseStarted();
+            }
 
             return new String(req.bytes(), "UTF-8");
         } catch (IOException e) {
@@ -553,9 +1065,183 @@ public class SeafConnection {
         }
     }
 
-    public TwoTuple<String, String> createNewDir(String repoID,
-                                                 String parentDir,
-                                                 String dirName) throws SeafException {
+    /**
+     * The lines before the content of a "file" part
+     */
+    private static byte[] getFilePartHeader(File file) throws UnsupportedEncodingException {
+        StringBuilder builder = new StringBuilder();
+        // line 1
+        builder.append(TWO_HYPENS + BOUNDARY + CRLF);
+        // line 2
+        builder.append("Content-Disposition: form-data; name=\"file\";filename=\""
+                       + file.getName() + "\"" + CRLF);
+        // line 3
+        builder.append("Content-Type: text/plain" + CRLF);
+        // line 4
+        builder.append(CRLF);
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Report the progress of one file of a batch as the progress of the
+     * whole batch, and its bytes to the metrics of the file
+     */
+    private static ProgressMonitor offsetMonitor(final ProgressMonitor monitor, final long offset,
+                                                 final int index) {
+        return new ProgressMonitor() {
+            @Override
+            public void onProgressNotify(long total) {
+                monitor.onProgressNotify(offset + total);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return monitor.isCancelled();
+            }
+
+            @Override
+            public TransferMetrics.Transfer getMetrics() {
+                return SeafConnection.getMetrics(monitor, index);
+            }
+        };
+    }
+
+    /**
+     * Upload several files with one multipart request, one "file" part per
+     * file. Like uploadFileCommon, the content length is computed up front
+     * so the body is streamed.
+     */
+    private List<String> uploadFilesCommon(String link, String dir, List<String> filePaths,
+                                           ProgressMonitor monitor) throws SeafException {
+        try {
+            List<File> files = new ArrayList<File>(filePaths.size());
+            for (String path : filePaths) {
+                File file = new File(path);
+                if (!file.exists()) {
+                    throw new SeafException(SeafException.OTHER_EXCEPTION, "File not exists");
+                }
+                files.add(file);
+            }
+
+            for (int i = 0; i < files.size(); i++) {
+                TransferMetrics.Transfer metrics = getMetrics(monitor, i);
+                if (metrics != null) {
+                    metrics.onRequestStarted();
+                }
+            }
+
+            // ask for a json response, so that it can be split per file
+            HttpRequest req = HttpRequest.post(link + "?ret-json=1").
+                                trustAllCerts().trustAllHosts().
+                                connectTimeout(15000);
+
+            StringBuilder builder = new StringBuilder();
+            builder.append(TWO_HYPENS + BOUNDARY + CRLF);
+            builder.append("Content-Disposition: form-data; name=\"parent_dir\"" + CRLF);
+            builder.append(CRLF);
+            builder.append(dir + CRLF);
+            byte[] dirParam = builder.toString().getBytes("UTF-8");
+            long totalLen = dirParam.length;
+
+            List<byte[]> fileHeaders = new ArrayList<byte[]>(files.size());
+            for (File file : files) {
+                byte[] fileHeader = getFilePartHeader(file);
+                fileHeaders.add(fileHeader);
+                totalLen += fileHeader.length + file.length() + 2;
+            }
+
+            String end = TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF;
+            totalLen += end.length();
+
+            req.contentLength((int)totalLen);
+            req.header("Connection", "close");
+            req.header("Cache-Control", "no-cache");
+            req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
+
+            req.send(dirParam);
+            if (monitor != null) {
+                req.bufferSize(MonitoredFileInputStream.BUFFER_SIZE);
+            }
+            long offset = 0;
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                req.send(fileHeaders.get(i));
+                if (monitor != null) {
+                    req.send(new MonitoredFileInputStream(file, offsetMonitor(monitor, offset, i)));
+                } else {
+                    req.send(new FileInputStream(file));
+                }
+                req.send(CRLF);
+                offset += file.length();
+            }
+            req.send(end);
+
+            if (req.code() != 200)
+                if (req.message() == null) {
+                    throw SeafException.networkException;
+                } else {
+                    throw new SeafException(req.code(), req.message());
+                }
+            for (int i = 0; i < files.size(); i++) {
+                TransferMetrics.Transfer metrics = getMetrics(monitor, i);
+                if (metrics != null) {
+                    metrics.onResponseStarted();
+                }
+            }
+
+            return parseUploadedFileIDs(new String(req.bytes(), "UTF-8"), files.size());
+        } catch (IOException e) {
+            throw SeafException.networkException;
+
+        } catch (HttpRequestException e) {
+            if (e.getCause() instanceof MonitorCancelledException) {
+                Log.d(DEBUG_TAG, "upload is cancelled");
+                throw SeafException.userCancelledException;
+            } else {
+                throw SeafException.networkException;
+            }
+        }
+    }
+
+    /**
+     * Split the response of a multi-file upload into the ID of each file.
+     * Servers which know "ret-json" return [{"name":..., "id":...}, ...],
+     * older ones return the IDs separated by tabs.
+     */
+    private static List<String> parseUploadedFileIDs(String response, int count) {
+        List<String> ids = new ArrayList<String>(count);
+        JSONArray array = response.startsWith("[") ? Utils.parseJsonArray(response) : null;
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject obj = array.optJSONObject(i);
+                ids.add(obj != null ? obj.optString("id", null) : null);
+            }
+        } else {
+            for (String id : response.trim().split("\t")) {
+                ids.add(id.length() > 0 ? id : null);
+            }
+        }
+
+        while (ids.size() < count) {
+            ids.add(null);
+        }
+        return ids;
+    }
+
+    public TwoTuple<String, String> createNewDir(final String repoID,
+                                                 final String parentDir,
+                                                 final String dirName) throws SeafException {
+        return withReauth(new ApiCall<TwoTuple<String, String>>() {
+            @Override
+            public TwoTuple<String, String> call() throws SeafException {
+                return realCreateNewDir(repoID, parentDir, dirName);
+            }
+        });
+    }
+
+    private TwoTuple<String, String> realCreateNewDir(String repoID,
+                                                      String parentDir,
+                                                      String dirName) throws SeafException {
 
         try {
             String fullPath = Utils.pathJoin(parentDir, dirName);
@@ -580,7 +1266,7 @@ public class SeafConnection {
                 return null;
             }
 
-            String content = new String(req.bytes(), "UTF-8");
+            String content = new String(readApiResponse(req, "new-dir-file"), "UTF-8");
             if (content.length() == 0) {
                 return null;
             }
@@ -596,9 +1282,20 @@ public class SeafConnection {
         }
     }
 
-    public TwoTuple<String, String> createNewFile(String repoID,
-                                                  String parentDir,
-                                                  String fileName) throws SeafException {
+    public TwoTuple<String, String> createNewFile(final String repoID,
+                                                  final String parentDir,
+                                                  final String fileName) throws SeafException {
+        return withReauth(new ApiCall<TwoTuple<String, String>>() {
+            @Override
+            public TwoTuple<String, String> call() throws SeafException {
+                return realCreateNewFile(repoID, parentDir, fileName);
+            }
+        });
+    }
+
+    private TwoTuple<String, String> realCreateNewFile(String repoID,
+                                                       String parentDir,
+                                                       String fileName) throws SeafException {
 
         try {
             String fullPath = Utils.pathJoin(parentDir, fileName);
@@ -623,7 +1320,7 @@ public class SeafConnection {
                 return null;
             }
 
-            String content = new String(req.bytes(), "UTF-8");
+            String content = new String(readApiResponse(req, "new-dir-file"), "UTF-8");
             if (content.length() == 0) {
                 return null;
             }
@@ -644,43 +1341,74 @@ public class SeafConnection {
      * Wrap a FileInputStream in a upload task. We publish the progress of the upload during the process, and if we detect the task has been cancelled by the user, we throw a {@link MonitorCancelledException} to indicate such a situation.
      */
     private class MonitoredFileInputStream extends InputStream {
-        public static final int BUFFER_SIZE = 1024;
-
+        // HttpRequest reads the stream through a buffer of this size, so each
+        // read moves a large chunk straight from the file channel into it
+        public static final int BUFFER_SIZE = 64 * 1024;
 
+        // Cancellation and progress are checked once this many bytes have
+        // been read, rather than on every read
+        private static final long CHECK_INTERVAL_BYTES = 256 * 1024;
         private static final long PROGRESS_UPDATE_INTERVAL = 1000;
         private ProgressMonitor monitor;
-        private InputStream src;
+        private TransferMetrics.Transfer metrics;
+        private BandwidthLimiter limiter;
+        private FileInputStream src;
+        private FileChannel channel;
         private long bytesRead = 0;
+        private long nextCheck = CHECK_INTERVAL_BYTES;
         private long nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
+        private final byte[] single = new byte[1];
 
         public MonitoredFileInputStream(File file, ProgressMonitor monitor) throws IOException {
             this.src = new FileInputStream(file);
+            this.channel = src.getChannel();
             this.monitor = monitor;
+            this.metrics = monitor.getMetrics();
+            this.limiter = BandwidthLimiter.getUploadLimiter();
         }
 
         @Override
-        public int read(byte[] buffer) throws IOException {
-            int read = src.read(buffer);
-            if (read != -1) {
-                bytesRead += read;
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
             }
 
-            checkMonitor();
+            int read;
+            try {
+                read = channel.read(ByteBuffer.wrap(buffer, offset, length));
+            } catch (ClosedByInterruptException e) {
+                // the task has been cancelled, which interrupts its thread
+                throw new MonitorCancelledException();
+            }
+
+            if (read == -1) {
+                checkMonitor();
+                return -1;
+            }
+
+            bytesRead += read;
+            if (metrics != null) {
+                metrics.onBytes(read);
+            }
+            limiter.acquire(read);
+
+            if (bytesRead >= nextCheck) {
+                nextCheck = bytesRead + CHECK_INTERVAL_BYTES;
+                checkMonitor();
+            }
 
             return read;
         }
 
         @Override
-        public int read() throws IOException {
-            int ret = src.read();
-            if (ret != -1) {
-                ++bytesRead;
-                if (bytesRead % BUFFER_SIZE == 0) {
-                    checkMonitor();
-                }
-            }
+        public int read(byte[] buffer) throws IOException {
+            return read(buffer, 0, buffer.length);
+        }
 
-            return ret;
+        @Override
+        public int read() throws IOException {
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
         }
 
         @Override
@@ -709,6 +1437,8 @@ public class SeafConnection {
 
         private static final long PROGRESS_UPDATE_INTERVAL = 500;
         private ProgressMonitor monitor;
+        private TransferMetrics.Transfer metrics;
+        private BandwidthLimiter limiter;
         private OutputStream dst;
         private long bytesWritten = 0;
         private long nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
@@ -716,12 +1446,18 @@ public class SeafConnection {
         public MonitoredFileOutputStream(File file, ProgressMonitor monitor) throws IOException {
             this.dst = new FileOutputStream(file);
             this.monitor = monitor;
+            this.metrics = monitor.getMetrics();
+            this.limiter = BandwidthLimiter.getDownloadLimiter();
         }
 
         @Override
         public void write(byte[] buffer, int off, int len) throws IOException {
             dst.write(buffer, off, len);
             bytesWritten += len;
+            if (metrics != null) {
+                metrics.onBytes(len);
+            }
+            limiter.acquire(len);
             checkMonitor();
         }
 
@@ -729,6 +1465,10 @@ public class SeafConnection {
         public void write(byte[] buffer) throws IOException {
             dst.write(buffer);
             bytesWritten += buffer.length;
+            if (metrics != null) {
+                metrics.onBytes(buffer.length);
+            }
+            limiter.acquire(buffer.length);
             checkMonitor();
         }
 
@@ -737,6 +1477,10 @@ public class SeafConnection {
             dst.write(b);
             ++bytesWritten;
             if (bytesWritten % BUFFER_SIZE == 0) {
+                if (metrics != null) {
+                    metrics.onBytes(BUFFER_SIZE);
+                }
+                limiter.acquire(BUFFER_SIZE);
                 checkMonitor();
             }
         }
@@ -11,7 +11,8 @@ public class Account implements Parcelable {
     public String server;
     
     public String email;
-    public String token;
+    // Replaced by the transfer threads when they log in again
+    public volatile String token;
     public String passwd;
     
     public Account() {
@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -22,6 +23,7 @@ import android.util.Log;
 import com.wingufile.wingudroid2.SeadroidApplication;
 import com.wingufile.wingudroid2.SeafConnection;
 import com.wingufile.wingudroid2.SeafException;
+import com.wingufile.wingudroid2.TransferMetrics;
 import com.wingufile.wingudroid2.Utils;
 import com.wingufile.wingudroid2.account.Account;
 
@@ -184,6 +186,31 @@ public class DataManager {
     private static final long REPOS_REFERSH_INTERVAL = 5 * 60 * 1000;
     private static final long DIR_REFERSH_INTERVAL = 1 * 60 * 1000;
 
+    // Concurrent fetches of the same repo list or dir, from any DataManager,
+    // share one request
+    private static final SingleFlight<List<SeafRepo>> reposFlight =
+        new SingleFlight<List<SeafRepo>>();
+    private static final SingleFlight<List<SeafDirent>> direntsFlight =
+        new SingleFlight<List<SeafDirent>>();
+
+    /**
+     * A repo list as parsed, with the MD5 of its JSON
+     */
+    private static class ParsedRepos {
+        final String hash;
+        final List<SeafRepo> repos;
+
+        ParsedRepos(String hash, List<SeafRepo> repos) {
+            this.hash = hash;
+            this.repos = repos;
+        }
+    }
+
+    // The last repo list parsed for each account, shared by all the
+    // DataManagers, so an unchanged list is not parsed again
+    private static final ConcurrentHashMap<String, ParsedRepos> parsedRepos =
+        new ConcurrentHashMap<String, ParsedRepos>();
+
     public DataManager(Account act) {
         account = act;
         sc = new SeafConnection(act);
@@ -200,6 +227,24 @@ public class DataManager {
                 filename);
     }
 
+    /**
+     * The validators of the cached repo list: ETag, Last-Modified and the
+     * MD5 of the content
+     */
+    private File getFileForReposCacheInfo() {
+        String filename = "repos-" + (account.server + account.email).hashCode() + ".meta";
+        return new File(getExternalCacheDirectory() + "/" +
+                filename);
+    }
+
+    private JSONObject getReposCacheInfo() {
+        File info = getFileForReposCacheInfo();
+        if (!info.exists() || !getFileForReposCache().exists()) {
+            return null;
+        }
+        return Utils.parseJsonObject(Utils.readFile(info));
+    }
+
     /**
      * The directory structure of Seafile on external storage is like this:
      *
@@ -394,16 +439,83 @@ public class DataManager {
             }
         }
 
+        List<SeafRepo> fetched = reposFlight.run(account.server + "\n" + account.email,
+                                                 new SingleFlight.Loader<List<SeafRepo>>() {
+            @Override
+            public List<SeafRepo> load() throws SeafException {
+                return fetchRepos();
+            }
+        });
+        if (fetched != null) {
+            // this DataManager may not be the one which has fetched it
+            reposCache = fetched;
+            lastRepoUpdate = Calendar.getInstance().getTimeInMillis();
+        }
+        return fetched;
+    }
+
+    private List<SeafRepo> fetchRepos() throws SeafException {
+        List<SeafRepo> repos;
+
         // Log.d(DEBUG_TAG, "get repos from server");
-        String json = sc.getRepos();
+        JSONObject cacheInfo = getReposCacheInfo();
+        String etag = null, lastModified = null, cachedHash = null;
+        if (cacheInfo != null) {
+            etag = cacheInfo.optString("etag", null);
+            lastModified = cacheInfo.optString("last_modified", null);
+            cachedHash = cacheInfo.optString("md5", null);
+        }
+
+        SeafConnection.ConditionalResponse resp = sc.getRepos(etag, lastModified);
+        if (!resp.isModified()) {
+            repos = getReposFromCache();
+            if (repos != null) {
+                lastRepoUpdate = Calendar.getInstance().getTimeInMillis();
+                return repos;
+            }
+            // the cache has gone, ask for the full list
+            resp = sc.getRepos(null, null);
+        }
+
+        String json = resp.content;
         if (json == null)
             return null;
 
+        // When the server does not support validators, a hash of the
+        // content tells if it is the list already cached. The list is then
+        // not written again. It is not parsed again either if it is still
+        // in memory since it was last parsed, and the same list object is
+        // returned so the UI can tell nothing changed.
+        String key = account.server + "\n" + account.email;
+        String hash = Utils.md5(json);
+        if (hash != null && hash.equals(cachedHash)) {
+            ParsedRepos parsed = parsedRepos.get(key);
+            if (parsed != null && hash.equals(parsed.hash)) {
+                reposCache = parsed.repos;
+            } else {
+                reposCache = parseRepos(json);
+                if (reposCache == null) {
+                    return null;
+                }
+                parsedRepos.put(key, new ParsedRepos(hash, reposCache));
+            }
+            lastRepoUpdate = Calendar.getInstance().getTimeInMillis();
+            if (!equalsOrBothNull(etag, resp.etag)
+                || !equalsOrBothNull(lastModified, resp.lastModified)) {
+                saveReposCacheInfo(resp.etag, resp.lastModified, hash);
+            }
+            return reposCache;
+        }
+
         reposCache = parseRepos(json);
+        if (reposCache != null && hash != null) {
+            parsedRepos.put(key, new ParsedRepos(hash, reposCache));
+        }
 
         try {
             File cache = getFileForReposCache();
             Utils.writeFile(cache, json);
+            saveReposCacheInfo(resp.etag, resp.lastModified, hash);
             lastRepoUpdate = Calendar.getInstance().getTimeInMillis();
         } catch (IOException e) {
             // ignore
@@ -412,9 +524,43 @@ public class DataManager {
         return reposCache;
     }
 
+    private static boolean equalsOrBothNull(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void saveReposCacheInfo(String etag, String lastModified, String hash) {
+        try {
+            JSONObject info = new JSONObject();
+            info.put("etag", etag);
+            info.put("last_modified", lastModified);
+            info.put("md5", hash);
+            Utils.writeFile(getFileForReposCacheInfo(), info.toString());
+        } catch (JSONException e) {
+            // ignore
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
     public interface ProgressMonitor {
         public void onProgressNotify(long total);
         boolean isCancelled();
+        /**
+         * @return the metrics recorder of the transfer, or null
+         */
+        TransferMetrics.Transfer getMetrics();
+    }
+
+    /**
+     * The monitor of a request uploading several files, which records the
+     * metrics of each file on its own transfer
+     */
+    public interface BatchProgressMonitor extends ProgressMonitor {
+        /**
+         * @return the metrics recorder of the file at the given index of
+         *         the batch, or null
+         */
+        TransferMetrics.Transfer getMetrics(int index);
     }
 
     public File getFile(String repoName, String repoID, String path,
@@ -508,6 +654,20 @@ public class DataManager {
 
     public List<SeafDirent> getDirents(String repoID,
             String path, boolean forceRefresh) throws SeafException {
+        return getDirents(repoID, path, forceRefresh, false);
+    }
+
+    /**
+     * Get the dirents for the prefetcher or the tree walker. The listing
+     * request does not count as interactive for the bandwidth limiter, and
+     * an interactive listing of the same dir does not wait for it.
+     */
+    List<SeafDirent> getDirentsInBackground(String repoID, String path) throws SeafException {
+        return getDirents(repoID, path, false, true);
+    }
+
+    private List<SeafDirent> getDirents(String repoID, String path, boolean forceRefresh,
+                                        final boolean background) throws SeafException {
 
         boolean useCache = shouldUseCachedDirents(repoID, path, forceRefresh);
 
@@ -522,8 +682,22 @@ public class DataManager {
             return parseDirents(json);
         }
 
+        final String fRepoID = repoID;
+        final String fPath = path;
+        String key = account.server + "\n" + account.email + "\n" + repoID + "\n" + path;
+        return direntsFlight.run(key, background, new SingleFlight.Loader<List<SeafDirent>>() {
+            @Override
+            public List<SeafDirent> load() throws SeafException {
+                // The cache may have been refreshed by the previous call
+                return fetchDirents(fRepoID, fPath, getCachedDirID(fRepoID, fPath), background);
+            }
+        });
+    }
+
+    private List<SeafDirent> fetchDirents(String repoID, String path, String cachedDirID,
+                                          boolean background) throws SeafException {
         // Log.d(DEBUG_TAG, "get dirents from server, p = " + path);
-        TwoTuple<String, String> ret = sc.getDirents(repoID, path, cachedDirID);
+        TwoTuple<String, String> ret = sc.getDirents(repoID, path, cachedDirID, background);
         String newDirID = ret.getFirst();
 
         File cache = getFileForDirentsCache(newDirID);
@@ -547,6 +721,15 @@ public class DataManager {
         }
     }
 
+    /**
+     * List all the directories under a path, with up to window listing
+     * requests in flight. The listings are returned by the walker as they
+     * arrive, and are stored in the dirent cache like any other.
+     */
+    public DirTreeWalker walkDir(String repoID, String path, int window) {
+        return new DirTreeWalker(this, repoID, path, window);
+    }
+
     public SeafCachedFile getCachedFile(String repoName, String repoID, String path) {
         SeafCachedFile cf = dbHelper.getFileCacheItem(repoID, path, this);
         return cf;
@@ -596,6 +779,29 @@ public class DataManager {
         }
 
         invalidateCache(repoID, dir);
+        addUploadedFile(repoName, repoID, dir, filePath, newFileID, isUpdate);
+    }
+
+    /**
+     * Upload several new files to the same dir in one request.
+     *
+     * @return the new file IDs, in the same order as filePaths. An entry is
+     * null if the server did not return an ID for that file.
+     */
+    public List<String> uploadFiles(String repoName, String repoID, String dir,
+                                    List<String> filePaths, ProgressMonitor monitor)
+                                        throws SeafException {
+        List<String> newFileIDs = sc.uploadFiles(repoID, dir, filePaths, monitor);
+
+        invalidateCache(repoID, dir);
+        for (int i = 0; i < filePaths.size(); i++) {
+            addUploadedFile(repoName, repoID, dir, filePaths.get(i), newFileIDs.get(i), false);
+        }
+        return newFileIDs;
+    }
+
+    private void addUploadedFile(String repoName, String repoID, String dir, String filePath,
+                                 String newFileID, boolean isUpdate) {
         if (newFileID == null || newFileID.length() == 0) {
             return;
         }
@@ -0,0 +1,213 @@
+package com.wingufile.wingudroid2.data;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.wingufile.wingudroid2.SeafException;
+import com.wingufile.wingudroid2.Utils;
+
+/**
+ * Lists all the directories of a tree, keeping several listing requests in
+ * flight instead of waiting for each one before sending the next.
+ *
+ * Listings are handed out by {@link #next()} as they arrive, in no
+ * particular order. A new request is only sent when there is room for its
+ * result, so a slow consumer holds at most a window of listings in memory
+ * whatever the size of the tree. Directories are walked depth first, and
+ * the directories still to fetch are taken from the listings already
+ * received, one listing per level being walked, so they are never copied
+ * out into a list as long as the tree is wide.
+ *
+ * The threads of the walker are stopped as soon as the walk ends. A caller
+ * which stops reading before {@link #next()} returns null must call
+ * {@link #cancel()}.
+ *
+ * The requests share the keep-alive connections of HttpURLConnection.
+ */
+public class DirTreeWalker {
+
+    public static class DirListing {
+        public final String path;
+        public final List<SeafDirent> dirents;
+
+        DirListing(String path, List<SeafDirent> dirents) {
+            this.path = path;
+            this.dirents = dirents;
+        }
+    }
+
+    // marks the end of the walk in the result queue
+    private static final DirListing END = new DirListing(null, null);
+
+    /**
+     * A listing whose subdirectories are not all fetched yet
+     */
+    private static class Level {
+        final String path;
+        final List<SeafDirent> dirents;
+        // index of the next dirent to look at
+        int next = 0;
+
+        Level(String path, List<SeafDirent> dirents) {
+            this.path = path;
+            this.dirents = dirents;
+        }
+    }
+
+    private final DataManager dataManager;
+    private final String repoID;
+    private final int window;
+    private final ExecutorService executor;
+
+    private final ArrayBlockingQueue<DirListing> results;
+    // guarded by this
+    private String root;
+    private final LinkedList<Level> levels = new LinkedList<Level>();
+    private int inFlight = 0;
+    private boolean finished = false;
+    private volatile SeafException err = null;
+
+    /**
+     * @param window the maximum number of listing requests in flight
+     */
+    DirTreeWalker(DataManager dataManager, String repoID, String path, int window) {
+        this.dataManager = dataManager;
+        this.repoID = repoID;
+        this.window = window;
+        this.executor = Executors.newFixedThreadPool(window);
+        // room for every request in flight, plus a window waiting for the consumer
+        this.results = new ArrayBlockingQueue<DirListing>(2 * window + 1);
+
+        root = path;
+        schedule();
+    }
+
+    /**
+     * @return the next listing, or null when the whole tree has been listed
+     * @throws SeafException if a listing has failed, the walk is then stopped
+     */
+    public DirListing next() throws SeafException {
+        DirListing listing;
+        try {
+            listing = results.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw SeafException.userCancelledException;
+        }
+
+        if (listing == END) {
+            if (err != null) {
+                throw err;
+            }
+            return null;
+        }
+
+        schedule();
+        return listing;
+    }
+
+    /**
+     * Stop the walk. The requests in flight are abandoned.
+     */
+    public void cancel() {
+        synchronized (this) {
+            root = null;
+            levels.clear();
+            finished = true;
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * End the walk, the threads exit once their request is done
+     */
+    private void finish() {
+        root = null;
+        levels.clear();
+        finished = true;
+        results.offer(END);
+        executor.shutdown();
+    }
+
+    /**
+     * @return the next directory to fetch, depth first, or null if there is
+     *         none until a request in flight returns
+     */
+    private String nextPath() {
+        if (root != null) {
+            String path = root;
+            root = null;
+            return path;
+        }
+        while (!levels.isEmpty()) {
+            Level level = levels.getLast();
+            while (level.next < level.dirents.size()) {
+                SeafDirent dirent = level.dirents.get(level.next++);
+                if (dirent.isDir()) {
+                    return Utils.pathJoin(level.path, dirent.name);
+                }
+            }
+            levels.removeLast();
+        }
+        return null;
+    }
+
+    /**
+     * Send as many requests as the window and the room left for results
+     * allow
+     */
+    private synchronized void schedule() {
+        if (finished) {
+            return;
+        }
+
+        while (inFlight < window && results.remainingCapacity() > inFlight + 1) {
+            final String path = nextPath();
+            if (path == null) {
+                break;
+            }
+            inFlight++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(path);
+                }
+            });
+        }
+
+        if (inFlight == 0 && root == null && levels.isEmpty()) {
+            finish();
+        }
+    }
+
+    private void fetch(String path) {
+        List<SeafDirent> dirents = null;
+        try {
+            dirents = dataManager.getDirentsInBackground(repoID, path);
+        } catch (SeafException e) {
+            err = e;
+        }
+
+        synchronized (this) {
+            inFlight--;
+            if (finished) {
+                return;
+            }
+            if (err != null) {
+                finish();
+                return;
+            }
+
+            if (dirents != null) {
+                levels.add(new Level(path, dirents));
+            }
+            // there is room, it was reserved when the request was sent
+            results.offer(new DirListing(path, dirents));
+        }
+        schedule();
+    }
+}
@@ -0,0 +1,176 @@
+package com.wingufile.wingudroid2.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import com.wingufile.wingudroid2.SeadroidApplication;
+import com.wingufile.wingudroid2.SeafException;
+import com.wingufile.wingudroid2.Utils;
+
+/**
+ * Fetches the listings of some subdirectories of the directory the user is
+ * viewing, so that opening one of them is served from the dirent cache.
+ *
+ * The subdirectories the user has opened most often in the repo go first,
+ * then the others in list order, up to {@link #MAX_PREFETCH}. Fetches run
+ * one at a time on a background priority thread, and the pending ones are
+ * dropped when the user navigates elsewhere. They are background requests:
+ * they do not slow the transfers down, and a listing asked by the user
+ * does not wait for them.
+ */
+public class DirentsPrefetcher {
+    private static final String DEBUG_TAG = "DirentsPrefetcher";
+
+    private static final int MAX_PREFETCH = 5;
+    private static final String PREFS_NAME = "dir-visits";
+
+    private static DirentsPrefetcher instance = null;
+
+    public static synchronized DirentsPrefetcher getInstance() {
+        if (instance == null) {
+            instance = new DirentsPrefetcher();
+        }
+        return instance;
+    }
+
+    // Incremented on each navigation, pending fetches of older ones are skipped
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ExecutorService executor;
+    private final SharedPreferences visits;
+
+    private DirentsPrefetcher() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, DEBUG_TAG);
+            }
+        });
+        visits = SeadroidApplication.getAppContext().getSharedPreferences(PREFS_NAME,
+                                                                          Context.MODE_PRIVATE);
+    }
+
+    private static String visitKey(String repoID, String path) {
+        return repoID + path;
+    }
+
+    /**
+     * Record that the user has opened a directory. The count is updated on
+     * the prefetch thread, before the subdirectories are ranked.
+     */
+    public void recordVisit(String repoID, String path) {
+        final String key = visitKey(repoID, path);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences.Editor editor = visits.edit();
+                editor.putInt(key, visits.getInt(key, 0) + 1);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                    editor.apply();
+                } else {
+                    editor.commit();
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the pending fetches
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Prefetch the subdirectories of a directory which has just been listed.
+     * The pending fetches of the previous directory are dropped.
+     */
+    public void prefetch(final DataManager dataManager, final String repoID,
+                         String dir, List<SeafDirent> dirents) {
+        final int gen = generation.incrementAndGet();
+        if (!Utils.isNetworkOn()) {
+            return;
+        }
+
+        final ArrayList<String> subdirs = new ArrayList<String>();
+        for (SeafDirent dirent : dirents) {
+            if (dirent.isDir()) {
+                subdirs.add(Utils.pathJoin(dir, dirent.name));
+            }
+        }
+
+        // the visit counts are read on the prefetch thread too
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation.get() != gen) {
+                    return;
+                }
+                for (String path : pickSubdirs(repoID, subdirs)) {
+                    executor.execute(newFetch(dataManager, repoID, path, gen));
+                }
+            }
+        });
+    }
+
+    private Runnable newFetch(final DataManager dataManager, final String repoID,
+                              final String path, final int gen) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (generation.get() != gen) {
+                    return;
+                }
+                try {
+                    // goes to the dirent cache, or is already fresh there
+                    dataManager.getDirentsInBackground(repoID, path);
+                } catch (SeafException e) {
+                    Log.d(DEBUG_TAG, "failed to prefetch " + path + ": " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * The most visited subdirectories first, then list order
+     */
+    private List<String> pickSubdirs(String repoID, List<String> subdirs) {
+        final ArrayList<Integer> counts = new ArrayList<Integer>(subdirs.size());
+        ArrayList<Integer> order = new ArrayList<Integer>(subdirs.size());
+        for (int i = 0; i < subdirs.size(); i++) {
+            counts.add(visits.getInt(visitKey(repoID, subdirs.get(i)), 0));
+            order.add(i);
+        }
+
+        // stable sort, ties keep the list order
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return counts.get(b) - counts.get(a);
+            }
+        });
+
+        ArrayList<String> picked = new ArrayList<String>(MAX_PREFETCH);
+        for (int i = 0; i < order.size() && picked.size() < MAX_PREFETCH; i++) {
+            picked.add(subdirs.get(order.get(i)));
+        }
+        return picked;
+    }
+}
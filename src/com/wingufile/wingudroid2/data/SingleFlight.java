@@ -0,0 +1,107 @@
+package com.wingufile.wingudroid2.data;
+
+import java.util.HashMap;
+
+import com.wingufile.wingudroid2.SeafException;
+
+/**
+ * Coalesces identical calls in flight: while a call for a key is running,
+ * other callers with the same key wait for it and get its result, instead
+ * of sending the same request again.
+ *
+ * The result is shared, so callers must not modify it.
+ *
+ * A call made in the background, which may be slowed down or queued behind
+ * other background work, is not joined by a foreground caller: the
+ * foreground caller runs its own call, which later callers join instead.
+ */
+class SingleFlight<V> {
+
+    interface Loader<V> {
+        V load() throws SeafException;
+    }
+
+    private static class Call<V> {
+        private final boolean background;
+        private boolean done = false;
+        private V result;
+        private SeafException err;
+        private RuntimeException runtimeErr;
+
+        Call(boolean background) {
+            this.background = background;
+        }
+
+        synchronized void finish() {
+            done = true;
+            notifyAll();
+        }
+
+        synchronized V await() throws SeafException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the waiting task has been cancelled
+                    Thread.currentThread().interrupt();
+                    throw SeafException.userCancelledException;
+                }
+            }
+            if (err != null) {
+                throw err;
+            }
+            if (runtimeErr != null) {
+                throw runtimeErr;
+            }
+            return result;
+        }
+    }
+
+    private final HashMap<String, Call<V>> calls = new HashMap<String, Call<V>>();
+
+    /**
+     * Run the loader, unless a call with the same key is already running,
+     * in which case wait for its result.
+     */
+    V run(String key, Loader<V> loader) throws SeafException {
+        return run(key, false, loader);
+    }
+
+    /**
+     * @param background true if the loader runs a background request, which
+     *        foreground callers do not wait for
+     */
+    V run(String key, boolean background, Loader<V> loader) throws SeafException {
+        Call<V> call;
+        boolean leader = false;
+        synchronized (calls) {
+            call = calls.get(key);
+            if (call == null || (call.background && !background)) {
+                call = new Call<V>(background);
+                calls.put(key, call);
+                leader = true;
+            }
+        }
+
+        if (!leader) {
+            return call.await();
+        }
+
+        try {
+            call.result = loader.load();
+        } catch (SeafException e) {
+            call.err = e;
+        } catch (RuntimeException e) {
+            call.runtimeErr = e;
+        } finally {
+            synchronized (calls) {
+                // a foreground call may have taken the key over
+                if (calls.get(key) == call) {
+                    calls.remove(key);
+                }
+            }
+            call.finish();
+        }
+        return call.await();
+    }
+}
@@ -6,6 +6,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
 
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,6 +27,22 @@ public abstract class BaseImageList implements IImageList {
     protected String mBucketId;
     protected boolean mCursorDeactivated = false;
 
+    // Returned by getOrientation() when the cursor has no orientation.
+    protected static final int ORIENTATION_UNKNOWN = -1;
+
+    // Orientations are read from the cursor this many rows at a time: the
+    // aligned chunk which holds the image being loaded.
+    private static final int ORIENTATION_CHUNK = 256;
+    // Slot of mOrientations not read from the cursor yet.
+    private static final int ORIENTATION_NOT_READ = Integer.MIN_VALUE;
+
+    // The orientation of the images in list order, filled one chunk at a
+    // time as images are loaded. Guarded by this.
+    private int[] mOrientations;
+
+    // Incremented each time the cursor is requeried. Guarded by this.
+    private int mGeneration;
+
     public BaseImageList(ContentResolver resolver, Uri uri, int sort,
             String bucketId) {
         mSort = sort;
@@ -91,11 +108,20 @@ public abstract class BaseImageList implements IImageList {
             if (mCursorDeactivated) {
                 mCursor.requery();
                 mCursorDeactivated = false;
+                ++mGeneration;
             }
             return mCursor;
         }
     }
 
+    /**
+     * Returns a number which changes each time the images are read again
+     * from the content provider, so their order and count may have changed.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
     public IImage getImageAt(int i) {
         BaseImage result = mCache.get(i);
         if (result == null) {
@@ -134,6 +160,78 @@ public abstract class BaseImageList implements IImageList {
 
     protected abstract long getImageId(Cursor cursor);
 
+    // Subclasses which have an orientation column return its value, or
+    // ORIENTATION_UNKNOWN if it is null.
+    protected int getOrientation(Cursor cursor) {
+        return 0;
+    }
+
+    // Returns the orientation of the image at the cursor position, as read
+    // from the cursor or as set by setCachedOrientation(). The caller holds
+    // the lock of this list. Only the chunk of rows around the position is
+    // read, so the cost of a call does not grow with the list.
+    protected int getCachedOrientation(Cursor cursor) {
+        int position = cursor.getPosition();
+        if (mOrientations == null) {
+            int[] orientations = new int[cursor.getCount()];
+            Arrays.fill(orientations, ORIENTATION_NOT_READ);
+            mOrientations = orientations;
+        }
+        if (position < 0 || position >= mOrientations.length) {
+            return getOrientation(cursor);
+        }
+        if (mOrientations[position] == ORIENTATION_NOT_READ) {
+            int start = position - position % ORIENTATION_CHUNK;
+            int end = Math.min(start + ORIENTATION_CHUNK, mOrientations.length);
+            for (int i = start; i < end && cursor.moveToPosition(i); ++i) {
+                if (mOrientations[i] == ORIENTATION_NOT_READ) {
+                    mOrientations[i] = getOrientation(cursor);
+                }
+            }
+            cursor.moveToPosition(position);
+            if (mOrientations[position] == ORIENTATION_NOT_READ) {
+                return getOrientation(cursor);
+            }
+        }
+        return mOrientations[position];
+    }
+
+    // Remember the orientation of an image, found by other means than the
+    // cursor or changed since the cursor was loaded.
+    protected synchronized void setCachedOrientation(int index, int degrees) {
+        if (mOrientations != null && index >= 0 && index < mOrientations.length) {
+            mOrientations[index] = degrees;
+        }
+    }
+
+    // Subclasses can read the date straight from the cursor instead of
+    // creating the image.
+    protected long getDateTaken(Cursor cursor) {
+        return loadImageFromCursor(cursor).getDateTaken();
+    }
+
+    /**
+     * Reads the date taken of up to count images from position start, in
+     * list order, into dates[start] and after.
+     *
+     * @return the number of dates read, less than count at the end of the
+     *         list
+     */
+    public int getDatesTaken(int start, long[] dates, int count) {
+        count = Math.min(count, dates.length - start);
+        Cursor cursor = getCursor();
+        if (cursor == null || count <= 0) return 0;
+        synchronized (this) {
+            int read = 0;
+            if (!cursor.moveToPosition(start)) return 0;
+            do {
+                dates[start + read] = getDateTaken(cursor);
+                ++read;
+            } while (read < count && cursor.moveToNext());
+            return read;
+        }
+    }
+
     protected void invalidateCursor() {
         if (mCursor == null) return;
         mCursor.deactivate();
@@ -142,6 +240,9 @@ public abstract class BaseImageList implements IImageList {
 
     protected void invalidateCache() {
         mCache.clear();
+        synchronized (this) {
+            mOrientations = null;
+        }
     }
 
     private static final Pattern sPathWithId = Pattern.compile("(.*)/\\d+");
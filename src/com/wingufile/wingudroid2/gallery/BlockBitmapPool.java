@@ -0,0 +1,82 @@
+package com.wingufile.wingudroid2.gallery;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of the row bitmaps (and their canvases) of ImageBlockManager, so
+ * that rebuilding the block manager on a layout change reuses the bitmaps
+ * of the previous one instead of allocating them again.
+ *
+ * All the bitmaps of the pool have the same size. Asking for another size
+ * empties the pool. Only used from the UI thread.
+ */
+class BlockBitmapPool {
+    private static final String TAG = "BlockBitmapPool";
+
+    static class Entry {
+        final Bitmap mBitmap;
+        final Canvas mCanvas;
+
+        private Entry(Bitmap bitmap) {
+            mBitmap = bitmap;
+            mCanvas = new Canvas(bitmap);
+        }
+    }
+
+    private final int mCapacity;
+    private final ArrayList<Entry> mFree = new ArrayList<Entry>();
+    private int mWidth;
+    private int mHeight;
+
+    // Counts of the bitmaps allocated and reused, for debugging
+    private int mAllocated;
+    private int mReused;
+
+    BlockBitmapPool(int capacity) {
+        mCapacity = capacity;
+    }
+
+    // Returns a black bitmap of the given size.
+    Entry obtain(int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            clear();
+            mWidth = width;
+            mHeight = height;
+        }
+
+        int n = mFree.size();
+        if (n > 0) {
+            Entry e = mFree.remove(n - 1);
+            e.mBitmap.eraseColor(0xFF000000);
+            mReused++;
+            return e;
+        }
+
+        mAllocated++;
+        return new Entry(Bitmap.createBitmap(width, height,
+                Bitmap.Config.RGB_565));
+    }
+
+    // The entry must not be used by the caller anymore.
+    void release(Entry e) {
+        if (e.mBitmap.getWidth() == mWidth && e.mBitmap.getHeight() == mHeight
+                && mFree.size() < mCapacity) {
+            mFree.add(e);
+        } else {
+            e.mBitmap.recycle();
+        }
+    }
+
+    // Recycle all the pooled bitmaps.
+    void clear() {
+        for (Entry e : mFree) {
+            e.mBitmap.recycle();
+        }
+        mFree.clear();
+        Log.d(TAG, "row bitmaps allocated " + mAllocated + ", reused " + mReused);
+    }
+}
@@ -91,6 +91,9 @@ class GridViewSpecial extends View {
     private final Handler mHandler = new Handler();
     private GestureDetector mGestureDetector;
     private ImageBlockManager mImageBlockManager;
+    // Row bitmaps reused by the successive block managers.
+    private final BlockBitmapPool mBlockPool =
+            new BlockBitmapPool(ImageBlockManager.CACHE_ROWS);
 
     // These are set in set*() functions.
     private ImageLoader mLoader;
@@ -225,7 +228,7 @@ class GridViewSpecial extends View {
 
         mImageBlockManager = new ImageBlockManager(mHandler, mRedrawCallback,
                 mAllImages, mLoader, mDrawAdapter, mSpec, mColumns, width,
-                mOutline[OUTLINE_EMPTY]);
+                mOutline[OUTLINE_EMPTY], mBlockPool);
 
         mListener.onLayoutComplete(changed);
 
@@ -465,6 +468,20 @@ class GridViewSpecial extends View {
         mCurrentSelection = INDEX_NONE;
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // The blocks go back to the pool when they are recycled, so they
+        // must be released before the pool is cleared. The next layout
+        // builds a new block manager.
+        if (mImageBlockManager != null) {
+            mImageBlockManager.recycle();
+            mImageBlockManager = null;
+        }
+        mLayoutComplete = false;
+        mBlockPool.clear();
+    }
+
     @Override
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
@@ -703,7 +720,7 @@ class ImageBlockManager {
 
     // Number of rows we want to cache.
     // Assume there are 6 rows per page, this caches 5 pages.
-    private static final int CACHE_ROWS = 30;
+    static final int CACHE_ROWS = 30;
 
     // mCache maps from row number to the ImageBlock.
     private final HashMap<Integer, ImageBlock> mCache;
@@ -724,6 +741,7 @@ class ImageBlockManager {
     private final int mCount;  // Cache mImageList.getCount().
     private final int mRows;  // Cache (mCount + mColumns - 1) / mColumns
     private final int mBlockHeight;  // The height of an ImageBlock.
+    private final BlockBitmapPool mPool;  // Where the block bitmaps come from.
 
     // Visible row range: [mStartRow, mEndRow). Set by setVisibleRows().
     private int mStartRow = 0;
@@ -733,7 +751,8 @@ class ImageBlockManager {
             IImageList imageList, ImageLoader loader,
             GridViewSpecial.DrawAdapter adapter,
             GridViewSpecial.LayoutSpec spec,
-            int columns, int blockWidth, Bitmap outline) {
+            int columns, int blockWidth, Bitmap outline,
+            BlockBitmapPool pool) {
         mHandler = handler;
         mRedrawCallback = redrawCallback;
         mImageList = imageList;
@@ -743,11 +762,14 @@ class ImageBlockManager {
         mColumns = columns;
         mBlockWidth = blockWidth;
         mOutline = outline;
+        mPool = pool;
         mBlockHeight = mSpec.mCellSpacing + mSpec.mCellHeight;
         mCount = imageList.getCount();
         mRows = (mCount + mColumns - 1) / mColumns;
         mCache = new HashMap<Integer, ImageBlock>();
         mPendingRequest = 0;
+        mRequestsLow = REQUESTS_LOW * loader.getWorkerCount();
+        mRequestsHigh = REQUESTS_HIGH * loader.getWorkerCount();
         initGraphics();
     }
 
@@ -763,9 +785,11 @@ class ImageBlockManager {
 
     int mPendingRequest;  // Number of pending requests (sent to ImageLoader).
     // We want to keep enough requests in ImageLoader's queue, but not too
-    // many.
+    // many. These are per decoding thread of the loader.
     static final int REQUESTS_LOW = 3;
     static final int REQUESTS_HIGH = 6;
+    private final int mRequestsLow;
+    private final int mRequestsHigh;
 
     // After clear requests currently in queue, start loading the thumbnails.
     // We need to clear the queue first because the proper order of loading
@@ -791,7 +815,7 @@ class ImageBlockManager {
     // Scan the cache and send requests to ImageLoader if needed.
     private void continueLoading() {
         // Check if we still have enough requests in the queue.
-        if (mPendingRequest >= REQUESTS_LOW) return;
+        if (mPendingRequest >= mRequestsLow) return;
 
         // Scan the visible rows.
         for (int i = mStartRow; i < mEndRow; i++) {
@@ -815,7 +839,7 @@ class ImageBlockManager {
     // Returns true if we can stop scanning.
     private boolean scanOne(int i) {
         mPendingRequest += tryToLoad(i);
-        return mPendingRequest >= REQUESTS_HIGH;
+        return mPendingRequest >= mRequestsHigh;
     }
 
     // Returns number of requests we issued for this row.
@@ -875,7 +899,8 @@ class ImageBlockManager {
         startLoading();
     }
 
-    // After calling recycle(), the instance should not be used anymore.
+    // After calling recycle(), the instance should not be used anymore. The
+    // block bitmaps go back to the pool.
     public void recycle() {
         for (ImageBlock blk : mCache.values()) {
             blk.recycle();
@@ -941,6 +966,10 @@ class ImageBlockManager {
     Paint mBackgroundPaint;
     private Bitmap mEmptyBitmap;
 
+    // Used to draw the last row, kept to avoid allocating on each draw.
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
+
     private void initGraphics() {
         mBackgroundPaint = new Paint();
         mBackgroundPaint.setStyle(Paint.Style.FILL);
@@ -955,8 +984,9 @@ class ImageBlockManager {
     // ImageBlock stores bitmap for one row. The loaded thumbnail images are
     // drawn to mBitmap. mBitmap is later used in onDraw() of GridViewSpecial.
     private class ImageBlock {
+        private BlockBitmapPool.Entry mEntry;
         private Bitmap mBitmap;
-        private final Canvas mCanvas;
+        private Canvas mCanvas;
 
         // Columns which have been requested to the loader
         private int mRequestedMask;
@@ -968,9 +998,9 @@ class ImageBlockManager {
         private int mRow;
 
         public ImageBlock() {
-            mBitmap = Bitmap.createBitmap(mBlockWidth, mBlockHeight,
-                    Bitmap.Config.RGB_565);
-            mCanvas = new Canvas(mBitmap);
+            mEntry = mPool.obtain(mBlockWidth, mBlockHeight);
+            mBitmap = mEntry.mBitmap;
+            mCanvas = mEntry.mCanvas;
             mRow = -1;
         }
 
@@ -986,16 +1016,31 @@ class ImageBlockManager {
         }
 
         // After recycle, the ImageBlock instance should not be accessed.
+        // The requests still in progress see mBitmap is null and don't draw
+        // on the bitmap, which may belong to another block by then.
         public void recycle() {
             cancelAllRequests();
-            mBitmap.recycle();
+            mPool.release(mEntry);
+            mEntry = null;
             mBitmap = null;
+            mCanvas = null;
         }
 
         private boolean isVisible() {
             return mRow >= mStartRow && mRow < mEndRow;
         }
 
+        // Distance from the visible region, 0 if visible. Used as the
+        // priority of the requests, so visible rows are loaded first.
+        private int distance() {
+            if (mRow >= mEndRow) {
+                return mRow - mEndRow + 1;
+            } else if (mRow < mStartRow) {
+                return mStartRow - mRow;
+            }
+            return 0;
+        }
+
         // Returns number of requests submitted to ImageLoader.
         public int loadImages() {
             Assert(mRow != -1);
@@ -1012,6 +1057,7 @@ class ImageBlockManager {
 
             int retVal = 0;
             int base = mRow * mColumns;
+            int priority = distance();
 
             for (int col = 0; col < columns; col++) {
                 if ((needMask & (1 << col)) == 0) {
@@ -1039,7 +1085,7 @@ class ImageBlockManager {
                                     }
                                 };
                     // Load Image
-                    mLoader.getBitmap(image, cb, pos);
+                    mLoader.getBitmap(image, cb, pos, priority);
                     mRequestedMask |= (1 << col);
                     retVal += 1;
                 }
@@ -1108,10 +1154,10 @@ class ImageBlockManager {
                 // Draw part of the block.
                 int w = mSpec.mLeftEdgePadding
                         + cols * (mSpec.mCellWidth + mSpec.mCellSpacing);
-                Rect srcRect = new Rect(0, 0, w, mBlockHeight);
-                Rect dstRect = new Rect(srcRect);
-                dstRect.offset(xPos, yPos);
-                canvas.drawBitmap(mBitmap, srcRect, dstRect, null);
+                mSrcRect.set(0, 0, w, mBlockHeight);
+                mDstRect.set(mSrcRect);
+                mDstRect.offset(xPos, yPos);
+                canvas.drawBitmap(mBitmap, mSrcRect, mDstRect, null);
             }
 
             // Draw the part which has not been loaded.
@@ -22,14 +22,30 @@ public class Image extends BaseImage implements IImage {
     private ExifInterface mExif;
 
     private int mRotation;
+    private final long mDateModified;
 
     public Image(BaseImageList container, ContentResolver cr,
             long id, int index, Uri uri, String dataPath,
             String mimeType, long dateTaken, String title,
-            int rotation) {
+            int rotation, long dateModified) {
         super(container, cr, id, index, uri, dataPath,
                 mimeType, dateTaken, title);
         mRotation = rotation;
+        mDateModified = dateModified;
+    }
+
+    @Override
+    public Bitmap miniThumbBitmap() {
+        ThumbnailCache cache = ThumbnailCache.instance();
+        String key = ThumbnailCache.key(mId, mDateModified, mRotation);
+        Bitmap b = cache.get(key);
+        if (b != null) return b;
+
+        b = super.miniThumbBitmap();
+        if (b != null) {
+            cache.put(key, b);
+        }
+        return b;
     }
 
     @Override
@@ -43,9 +59,10 @@ public class Image extends BaseImage implements IImage {
         ContentValues values = new ContentValues();
         values.put(ImageColumns.ORIENTATION, mRotation);
         mContentResolver.update(mUri, values, null, null);
-
-        //TODO: Consider invalidate the cursor in container
-        // ((BaseImageList) getContainer()).invalidateCursor();
+        // the cursor of the container still has the old value
+        if (mContainer != null) {
+            mContainer.setCachedOrientation(mIndex, mRotation);
+        }
     }
 
     public boolean isReadonly() {
@@ -19,6 +19,12 @@ public class ImageList extends BaseImageList implements IImageList {
     private static final String[] ACCEPTABLE_IMAGE_TYPES =
             new String[] { "image/jpeg", "image/png", "image/gif" };
 
+    // The orientations read from EXIF, for the images which have none in
+    // MediaStore, kept across lists so that reopening the picker does not
+    // parse the files again. Keyed by image id and date modified.
+    private static final LruCache<String, Integer> sExifOrientations =
+            new LruCache<String, Integer>(256);
+
     public HashMap<String, String> getBucketIds() {
         Uri uri = mBaseUri.buildUpon()
                 .appendQueryParameter("distinct", "true").build();
@@ -100,23 +106,57 @@ public class ImageList extends BaseImageList implements IImageList {
         return cursor.getLong(INDEX_ID);
     }
 
+    @Override
+    protected long getDateTaken(Cursor cursor) {
+        long dateTaken = cursor.getLong(INDEX_DATE_TAKEN);
+        if (dateTaken == 0) {
+            dateTaken = cursor.getLong(INDEX_DATE_MODIFIED) * 1000;
+        }
+        return dateTaken;
+    }
+
+    @Override
+    protected int getOrientation(Cursor cursor) {
+        return cursor.isNull(INDEX_ORIENTATION)
+                ? ORIENTATION_UNKNOWN
+                : cursor.getInt(INDEX_ORIENTATION);
+    }
+
+    private static int getExifOrientation(long id, long dateModified,
+            String dataPath, String mimeType) {
+        if (dataPath == null || !"image/jpeg".equals(mimeType)) return 0;
+        String key = id + "-" + dateModified;
+        Integer orientation = sExifOrientations.get(key);
+        if (orientation == null) {
+            orientation = ImageManager.getExifOrientation(dataPath);
+            sExifOrientations.put(key, orientation);
+        }
+        return orientation;
+    }
+
     @Override
     protected BaseImage loadImageFromCursor(Cursor cursor) {
         long id = cursor.getLong(INDEX_ID);
         String dataPath = cursor.getString(INDEX_DATA_PATH);
+        long dateModified = cursor.getLong(INDEX_DATE_MODIFIED);
         long dateTaken = cursor.getLong(INDEX_DATE_TAKEN);
         if (dateTaken == 0) {
-            dateTaken = cursor.getLong(INDEX_DATE_MODIFIED) * 1000;
+            dateTaken = dateModified * 1000;
         }
         long miniThumbMagic = cursor.getLong(INDEX_MINI_THUMB_MAGIC);
-        int orientation = cursor.getInt(INDEX_ORIENTATION);
         String title = cursor.getString(INDEX_TITLE);
         String mimeType = cursor.getString(INDEX_MIME_TYPE);
+        int orientation = getCachedOrientation(cursor);
+        if (orientation == ORIENTATION_UNKNOWN) {
+            orientation = getExifOrientation(id, dateModified, dataPath,
+                    mimeType);
+            setCachedOrientation(cursor.getPosition(), orientation);
+        }
         if (title == null || title.length() == 0) {
             title = dataPath;
         }
         return new Image(this, mContentResolver, id, cursor.getPosition(),
                 contentUri(id), dataPath, mimeType, dateTaken, title,
-                orientation);
+                orientation, dateModified);
     }
 }
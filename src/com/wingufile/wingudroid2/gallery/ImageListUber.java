@@ -3,49 +3,369 @@ package com.wingufile.wingudroid2.gallery;
 import android.net.Uri;
 
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.PriorityQueue;
 
 /**
  * A union of different <code>IImageList</code>. This class can merge several
  * <code>IImageList</code> into one list and sort them according to the
  * timestamp (The sorting must be same as all the given lists).
+ *
+ * The merged order is computed on a background thread started by the
+ * constructor, into an array of (sublist, index in sublist) entries. The
+ * dates are read from the sublists and the entries published CHUNK at a
+ * time, so random access is a lookup in that array as soon as the merge
+ * has reached the entry, and a caller only waits for the chunks before it.
+ *
+ * When the cursor of a sublist is requeried or its count changes, a new
+ * merge reads its dates again up to the first one which differs: the
+ * merged entries before the point where that date was reached are kept,
+ * and only the rest is merged again. The removal of an image through this
+ * list updates the merge in place. close() stops the merge and waits for
+ * it before closing the sublists.
  */
 public class ImageListUber implements IImageList {
     @SuppressWarnings("unused")
     private static final String TAG = "ImageListUber";
 
+    // Number of dates read from a sublist, and of merged entries published,
+    // at a time.
+    private static final int CHUNK = 256;
+
     private final IImageList [] mSubList;
-    private final PriorityQueue<MergeSlot> mQueue;
+    private final boolean mAscending;
 
-    // This is an array of Longs wherein each Long consists of two components:
-    // "a number" and "an index of sublist".
-    //   * The lower 32bit indicates the number of consecutive entries that
-    //     belong to a given sublist.
+    // All guarded by this.
     //
-    //   * The higher 32bit component indicates which sublist we're referring
-    //     to.
-    private long[] mSkipList;
-    private int mSkipListSize;
-    private int [] mSkipCounts;
-    private int mLastListIndex;
+    // The merged list, built up to mMergedSize. Each long consists of two
+    // components:
+    //   * The higher 32bit component indicates which sublist the entry
+    //     belongs to.
+    //   * The lower 32bit is the index of the entry in that sublist.
+    private long[] mMerged = new long[0];
+    private int mMergedSize;
+    // mPositions[which][subindex] is the position of the entry in mMerged,
+    // -1 if it is not merged yet.
+    private int[][] mPositions;
+    // The dates of the entries of each sublist, the first mDatesRead of
+    // them read from its cursor.
+    private long[][] mDates;
+    private int[] mDatesRead;
+    // The count of each sublist, and the generation of its cursor the dates
+    // were read from. Null until the first merge has started publishing.
+    private int[] mSubCounts;
+    private int[] mSubGenerations;
+    // The running merge, null once the merge is complete.
+    private Merger mMerger;
+    // False while the running merge has not found yet how much of the
+    // previous one it keeps: the readers wait.
+    private boolean mPrefixKnown;
+    private boolean mClosed;
+
+    // Set after a removal: the next generation of the sublist is the one
+    // requeried after the removal, already applied to the merge.
+    private static final int GENERATION_AFTER_REMOVE = -1;
 
     public ImageListUber(IImageList [] sublist, int sort) {
         mSubList = sublist.clone();
-        mQueue = new PriorityQueue<MergeSlot>(4,
-                sort == ImageManager.SORT_ASCENDING
-                ? new AscendingComparator()
-                : new DescendingComparator());
-        mSkipList = new long[16];
-        mSkipListSize = 0;
-        mSkipCounts = new int[mSubList.length];
-        mLastListIndex = -1;
-        mQueue.clear();
-        for (int i = 0, n = mSubList.length; i < n; ++i) {
-            IImageList list = mSubList[i];
-            MergeSlot slot = new MergeSlot(list, i);
-            if (slot.next()) mQueue.add(slot);
+        mAscending = sort == ImageManager.SORT_ASCENDING;
+
+        synchronized (this) {
+            startMerge();
+        }
+    }
+
+    private static long entry(int which, int subindex) {
+        return (((long) which) << 32) | subindex;
+    }
+
+    private static int whichOf(long entry) {
+        return (int) (entry >> 32);
+    }
+
+    private static int subindexOf(long entry) {
+        return (int) (entry & 0xFFFFFFFFL);
+    }
+
+    private static int generationOf(IImageList list) {
+        if (list instanceof BaseImageList) {
+            return ((BaseImageList) list).getGeneration();
+        }
+        return 0;
+    }
+
+    // Read up to CHUNK dates of a sublist from position start into dates.
+    private static int readDates(IImageList list, int start, long[] dates) {
+        if (list instanceof BaseImageList) {
+            return ((BaseImageList) list).getDatesTaken(start, dates, CHUNK);
+        }
+        int end = Math.min(start + CHUNK, Math.min(dates.length, list.getCount()));
+        for (int i = start; i < end; ++i) {
+            IImage image = list.getImageAt(i);
+            dates[i] = image == null ? 0 : image.getDateTaken();
+        }
+        return Math.max(0, end - start);
+    }
+
+    // Start a new merge, which takes over from the running one if any. The
+    // caller holds the lock.
+    private void startMerge() {
+        if (mClosed) return;
+        if (mMerger != null) {
+            mMerger.cancel();
+        }
+        mMerger = new Merger(mMerger);
+        mPrefixKnown = false;
+        mMerger.start();
+    }
+
+    private boolean subListsChanged() {
+        for (int i = 0; i < mSubList.length; ++i) {
+            // getCount() requeries a deactivated cursor first
+            int count = mSubList[i].getCount();
+            int generation = generationOf(mSubList[i]);
+            if (mSubGenerations[i] == GENERATION_AFTER_REMOVE) {
+                mSubGenerations[i] = generation;
+            }
+            if (count != mSubCounts[i] || generation != mSubGenerations[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Merge again if a sublist has changed since the merge started. The
+    // caller holds the lock.
+    private void checkSubLists() {
+        if (mClosed || !mPrefixKnown) return;
+        if (subListsChanged()) {
+            startMerge();
+        }
+    }
+
+    // Wait for the running merge to publish more entries. The caller holds
+    // the lock. Returns false if there is nothing more to wait for.
+    private boolean waitForMerge() {
+        if (mClosed || mMerger == null) return false;
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merges the sublists in the background. The sublists are already
+     * sorted, so this is a merge of their dates: at each step, take the
+     * head with the earliest (or latest) date, the first sublist on a tie.
+     */
+    private class Merger extends Thread {
+        // The merge this one takes over from, until it is done
+        private Merger mPrevious;
+        private volatile boolean mCancelled;
+
+        Merger(Merger previous) {
+            super("image-list-merge");
+            mPrevious = previous;
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                merge();
+            } finally {
+                synchronized (ImageListUber.this) {
+                    if (mMerger == this) {
+                        mMerger = null;
+                    }
+                    ImageListUber.this.notifyAll();
+                }
+            }
+        }
+
+        private void merge() {
+            // Only one merge reads the state at a time
+            if (mPrevious != null) {
+                boolean interrupted = false;
+                while (mPrevious.isAlive()) {
+                    try {
+                        mPrevious.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) Thread.currentThread().interrupt();
+                mPrevious = null;
+            }
+
+            int n = mSubList.length;
+            int[] counts = new int[n];
+            int[] generations = new int[n];
+            for (int i = 0; i < n; ++i) {
+                // getCount() may requery, and so change the generation
+                counts[i] = mSubList[i].getCount();
+                generations[i] = generationOf(mSubList[i]);
+            }
+
+            long[] oldMerged;
+            int oldSize;
+            int[][] oldPositions;
+            long[][] oldDates;
+            int[] oldRead;
+            int[] oldCounts;
+            int[] oldGenerations;
+            synchronized (ImageListUber.this) {
+                if (mCancelled) return;
+                oldMerged = mMerged;
+                oldSize = mMergedSize;
+                oldPositions = mPositions;
+                oldDates = mDates;
+                oldRead = mDatesRead;
+                oldCounts = mSubCounts;
+                oldGenerations = mSubGenerations;
+            }
+
+            // Find how much of the previous merge is still valid: up to the
+            // point where the first changed date of a sublist became its head.
+            long[][] dates = new long[n][];
+            int[] read = new int[n];
+            boolean[] changed = new boolean[n];
+            int keep = oldCounts == null ? 0 : oldSize;
+            for (int i = 0; i < n; ++i) {
+                if (oldCounts != null && counts[i] == oldCounts[i]
+                        && generations[i] == oldGenerations[i]) {
+                    dates[i] = oldDates[i];
+                    read[i] = oldRead[i];
+                    continue;
+                }
+                changed[i] = true;
+                dates[i] = new long[counts[i]];
+                if (oldCounts == null) continue;
+
+                int limit = Math.min(counts[i], oldRead[i]);
+                int same = 0;
+                while (same < limit) {
+                    if (mCancelled) return;
+                    int got = readDates(mSubList[i], read[i], dates[i]);
+                    if (got == 0) break;
+                    read[i] += got;
+                    while (same < Math.min(read[i], limit)
+                            && dates[i][same] == oldDates[i][same]) {
+                        ++same;
+                    }
+                    if (same < Math.min(read[i], limit)) break;
+                }
+                if (same == counts[i] && same == oldCounts[i]) continue;
+                if (same == 0) {
+                    keep = 0;
+                } else if (oldPositions[i][same - 1] != -1) {
+                    keep = Math.min(keep, oldPositions[i][same - 1] + 1);
+                }
+                // else the last same entry was not merged yet, nor anything
+                // after it: all the merged entries are still valid
+            }
+
+            int[] heads = new int[n];
+            int total = 0;
+            synchronized (ImageListUber.this) {
+                if (mCancelled) return;
+                for (int pos = 0; pos < keep; ++pos) {
+                    ++heads[whichOf(oldMerged[pos])];
+                }
+                int[][] positions = new int[n][];
+                for (int i = 0; i < n; ++i) {
+                    total += counts[i];
+                    if (changed[i] || oldPositions == null) {
+                        positions[i] = new int[counts[i]];
+                        Arrays.fill(positions[i], -1);
+                        if (oldPositions != null) {
+                            System.arraycopy(oldPositions[i], 0, positions[i], 0, heads[i]);
+                        }
+                    } else {
+                        positions[i] = oldPositions[i];
+                    }
+                }
+                for (int pos = keep; pos < oldSize; ++pos) {
+                    long v = oldMerged[pos];
+                    if (!changed[whichOf(v)]) {
+                        positions[whichOf(v)][subindexOf(v)] = -1;
+                    }
+                }
+                long[] merged = oldMerged;
+                if (merged.length < total) {
+                    merged = new long[total];
+                    System.arraycopy(oldMerged, 0, merged, 0, keep);
+                }
+                mMerged = merged;
+                mMergedSize = keep;
+                mPositions = positions;
+                mDates = dates;
+                mDatesRead = read;
+                mSubCounts = counts;
+                mSubGenerations = generations;
+                mPrefixKnown = true;
+                ImageListUber.this.notifyAll();
+            }
+
+            long[] pending = new long[CHUNK];
+            int pendingSize = 0;
+            while (true) {
+                if (mCancelled) return;
+                int best = -1;
+                for (int i = 0; i < n; ++i) {
+                    if (heads[i] >= counts[i]) continue;
+                    if (heads[i] >= read[i]) {
+                        int got = readDates(mSubList[i], read[i], dates[i]);
+                        if (got == 0) {
+                            // the cursor has changed, it is merged again
+                            // once the readers see its new count
+                            synchronized (ImageListUber.this) {
+                                counts[i] = heads[i];
+                            }
+                            continue;
+                        }
+                        synchronized (ImageListUber.this) {
+                            read[i] += got;
+                        }
+                    }
+                    if (best == -1) {
+                        best = i;
+                        continue;
+                    }
+                    long d = dates[i][heads[i]];
+                    long bestDate = dates[best][heads[best]];
+                    if (mAscending ? d < bestDate : d > bestDate) {
+                        best = i;
+                    }
+                }
+                if (best != -1) {
+                    pending[pendingSize++] = entry(best, heads[best]++);
+                }
+                if (pendingSize == CHUNK || (best == -1 && pendingSize > 0)) {
+                    if (!publish(pending, pendingSize)) return;
+                    pendingSize = 0;
+                }
+                if (best == -1) return;
+            }
+        }
+
+        private boolean publish(long[] entries, int size) {
+            synchronized (ImageListUber.this) {
+                if (mCancelled) return false;
+                for (int k = 0; k < size; ++k) {
+                    long v = entries[k];
+                    mMerged[mMergedSize] = v;
+                    mPositions[whichOf(v)][subindexOf(v)] = mMergedSize;
+                    ++mMergedSize;
+                }
+                ImageListUber.this.notifyAll();
+                return true;
+            }
         }
     }
 
@@ -72,71 +392,22 @@ public class ImageListUber implements IImageList {
         return true;
     }
 
-    // mSkipCounts is used to tally the counts as we traverse
-    // the mSkipList.  It's a member variable only so that
-    // we don't have to allocate each time through.  Otherwise
-    // it could just as easily be a local.
-
     public IImage getImageAt(int index) {
         if (index < 0 || index > getCount()) {
             throw new IndexOutOfBoundsException(
                     "index " + index + " out of range max is " + getCount());
         }
 
-        int skipCounts[] = mSkipCounts;
-        // zero out the mSkipCounts since that's only used for the
-        // duration of the function call.
-        Arrays.fill(skipCounts, 0);
-
-        // a counter of how many images we've skipped in
-        // trying to get to index.  alternatively we could
-        // have decremented index but, alas, I liked this
-        // way more.
-        int skipCount = 0;
-
-        // scan the existing mSkipList to see if we've computed
-        // enough to just return the answer
-        for (int i = 0, n = mSkipListSize; i < n; ++i) {
-            long v = mSkipList[i];
-
-            int offset = (int) (v & 0xFFFFFFFF);
-            int which  = (int) (v >> 32);
-            if (skipCount + offset > index) {
-                int subindex = mSkipCounts[which] + (index - skipCount);
-                return mSubList[which].getImageAt(subindex);
-            }
-            skipCount += offset;
-            mSkipCounts[which] += offset;
-        }
-
-        for (; true; ++skipCount) {
-            MergeSlot slot = nextMergeSlot();
-            if (slot == null) return null;
-            if (skipCount == index) {
-                IImage result = slot.mImage;
-                if (slot.next()) mQueue.add(slot);
-                return result;
+        long v;
+        synchronized (this) {
+            checkSubLists();
+            while (!mPrefixKnown || index >= mMergedSize) {
+                if (!waitForMerge()) break;
             }
-            if (slot.next()) mQueue.add(slot);
+            if (mClosed || !mPrefixKnown || index >= mMergedSize) return null;
+            v = mMerged[index];
         }
-    }
-
-    private MergeSlot nextMergeSlot() {
-        MergeSlot slot = mQueue.poll();
-        if (slot == null) return null;
-        if (slot.mListIndex == mLastListIndex) {
-            int lastIndex = mSkipListSize - 1;
-            ++mSkipList[lastIndex];
-        } else {
-            mLastListIndex = slot.mListIndex;
-            if (mSkipList.length == mSkipListSize) {
-                long [] temp = new long[mSkipListSize * 2];
-                System.arraycopy(mSkipList, 0, temp, 0, mSkipListSize);
-                mSkipList = temp;
-            }
-            mSkipList[mSkipListSize++] = (((long) mLastListIndex) << 32) | 1;
-        }
-        return slot;
+        return mSubList[whichOf(v)].getImageAt(subindexOf(v));
     }
 
     public IImage getImageForUri(Uri uri) {
@@ -148,28 +419,51 @@ public class ImageListUber implements IImageList {
     }
 
     /**
-     * Modify the skip list when an image is deleted by finding
-     * the relevant entry in mSkipList and decrementing the
-     * counter.  This is simple because deletion can never
-     * cause change the order of images.
+     * Remove the entry of a deleted image from the merged list. Deletion
+     * can never change the order of images, so only the entries after it
+     * are updated: they move up by one, and the ones of the same sublist
+     * get their index decremented.
+     *
+     * The sublist has already removed the image: the merge is not checked
+     * for changes here, the removal would be applied twice. While a merge
+     * is running, it is left to find the change itself.
      */
-    private void modifySkipCountForDeletedImage(int index) {
-        int skipCount = 0;
-        for (int i = 0, n = mSkipListSize; i < n; i++) {
-            long v = mSkipList[i];
-            int offset = (int) (v & 0xFFFFFFFF);
-            if (skipCount + offset > index) {
-                mSkipList[i] = v - 1;
-                break;
+    private synchronized void removeMergedEntry(int index) {
+        if (mMerger != null) return;
+        if (index < 0 || index >= mMergedSize) return;
+
+        long removed = mMerged[index];
+        int which = whichOf(removed);
+        int[] positions = mPositions[which];
+        long[] dates = mDates[which];
+        int subindex = subindexOf(removed);
+        int count = mSubCounts[which];
+        System.arraycopy(positions, subindex + 1, positions, subindex,
+                count - subindex - 1);
+        positions[count - 1] = -1;
+        System.arraycopy(dates, subindex + 1, dates, subindex,
+                count - subindex - 1);
+        mSubCounts[which] = count - 1;
+        mDatesRead[which] = count - 1;
+        mSubGenerations[which] = GENERATION_AFTER_REMOVE;
+        System.arraycopy(mMerged, index + 1, mMerged, index,
+                mMergedSize - index - 1);
+        --mMergedSize;
+
+        for (int pos = index; pos < mMergedSize; ++pos) {
+            long v = mMerged[pos];
+            if (whichOf(v) == which) {
+                v = entry(which, subindexOf(v) - 1);
+                mMerged[pos] = v;
             }
-            skipCount += offset;
+            mPositions[whichOf(v)][subindexOf(v)] = pos;
         }
     }
 
     private boolean removeImage(IImage image, int index) {
         IImageList list = image.getContainer();
         if (list != null && list.removeImage(image)) {
-            modifySkipCountForDeletedImage(index);
+            removeMergedEntry(index);
             return true;
         }
         return false;
@@ -193,84 +487,43 @@ public class ImageListUber implements IImageList {
         }
         int listOffset = list.getImageIndex(image);
 
-        // Similar algorithm as getImageAt(int index)
-        int skipCount = 0;
-        for (int i = 0, n = mSkipListSize; i < n; ++i) {
-            long value = mSkipList[i];
-            int offset = (int) (value & 0xFFFFFFFF);
-            int which  = (int) (value >> 32);
-            if (which == listIndex) {
-                if (listOffset < offset) {
-                    return skipCount + listOffset;
-                }
-                listOffset -= offset;
+        checkSubLists();
+        while (true) {
+            if (mPrefixKnown) {
+                if (listOffset < 0 || listOffset >= mSubCounts[listIndex]) return -1;
+                int pos = mPositions[listIndex][listOffset];
+                if (pos != -1) return pos;
             }
-            skipCount += offset;
-        }
-
-        for (; true; ++skipCount) {
-            MergeSlot slot = nextMergeSlot();
-            if (slot == null) return -1;
-            if (slot.mImage == image) {
-                if (slot.next()) mQueue.add(slot);
-                return skipCount;
-            }
-            if (slot.next()) mQueue.add(slot);
+            if (!waitForMerge()) return -1;
         }
     }
 
-    private static class DescendingComparator implements Comparator<MergeSlot> {
-
-        public int compare(MergeSlot m1, MergeSlot m2) {
-            if (m1.mDateTaken != m2.mDateTaken) {
-                return m1.mDateTaken < m2.mDateTaken ? 1 : -1;
+    public void close() {
+        Merger merger;
+        synchronized (this) {
+            mClosed = true;
+            merger = mMerger;
+            mMerger = null;
+            if (merger != null) {
+                merger.cancel();
             }
-            return m1.mListIndex - m2.mListIndex;
+            notifyAll();
         }
-    }
-
-    private static class AscendingComparator implements Comparator<MergeSlot> {
-
-        public int compare(MergeSlot m1, MergeSlot m2) {
-            if (m1.mDateTaken != m2.mDateTaken) {
-                return m1.mDateTaken < m2.mDateTaken ? -1 : 1;
+        // The merge reads the sublists, it must be done before they close.
+        // It stops at the end of the chunk it is reading.
+        if (merger != null) {
+            boolean interrupted = false;
+            while (merger.isAlive()) {
+                try {
+                    merger.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
-            return m1.mListIndex - m2.mListIndex;
+            if (interrupted) Thread.currentThread().interrupt();
         }
-    }
-
-    /**
-     * A merging slot is used to trace the current position of a sublist. For
-     * each given sub list, there will be one corresponding merge slot. We
-     * use merge-sort-like algorithm to build the merged list. At begining,
-     * we put all the slots in a sorted heap (by timestamp). Each time, we
-     * pop the slot with earliest timestamp out, get the image, and then move
-     * the index forward, and put it back to the heap.
-     */
-    private static class MergeSlot {
-        private int mOffset = -1;
-        private final IImageList mList;
-
-        int mListIndex;
-        long mDateTaken;
-        IImage mImage;
-
-        public MergeSlot(IImageList list, int index) {
-            mList = list;
-            mListIndex = index;
-        }
-
-        public boolean next() {
-            if (mOffset >= mList.getCount() - 1) return false;
-            mImage = mList.getImageAt(++mOffset);
-            mDateTaken = mImage.getDateTaken();
-            return true;
-        }
-    }
-
-    public void close() {
         for (int i = 0, n = mSubList.length; i < n; ++i) {
             mSubList[i].close();
         }
     }
-}
\ No newline at end of file
+}
@@ -3,24 +3,34 @@ package com.wingufile.wingudroid2.gallery;
 import android.content.ContentResolver;
 import android.graphics.Bitmap;
 import android.os.Handler;
-import android.provider.MediaStore;
-import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 /**
- * A dedicated decoding thread used by ImageGallery.
+ * A small pool of decoding threads used by ImageGallery.
+ *
+ * Requests are served by priority, the lowest value first, and the most
+ * recent first among requests of the same priority. Each queued request is
+ * indexed by its image so that cancel() does not search the queue.
  */
 public class ImageLoader {
     @SuppressWarnings("unused")
     private static final String TAG = "ImageLoader";
 
-    // Queue of work to do in the worker thread. The work is done in order.
-    private final ArrayList<WorkItem> mQueue = new ArrayList<WorkItem>();
+    private static final int MAX_WORKERS = 4;
 
-    // the worker thread and a done flag so we know when to exit
+    // Queue of work to do in the worker threads, a doubly linked list of
+    // work items kept sorted by priority. Guarded by itself.
+    private final WorkItem mQueue = new WorkItem(null, null, 0, 0);
+    private int mQueueSize;
+    // The queued work item of each image
+    private final IdentityHashMap<IImage, WorkItem> mIndex =
+            new IdentityHashMap<IImage, WorkItem>();
+
+    // the worker threads and a done flag so we know when to exit
     private boolean mDone;
-    private Thread mDecodeThread;
+    private Thread[] mDecodeThreads;
+    private final int mWorkerCount;
     private ContentResolver mCr;
 
     public interface LoadedCallback {
@@ -30,21 +40,39 @@ public class ImageLoader {
     public void getBitmap(IImage image,
                           LoadedCallback imageLoadedRunnable,
                           int tag) {
-        if (mDecodeThread == null) {
+        getBitmap(image, imageLoadedRunnable, tag, 0);
+    }
+
+    /**
+     * @param priority requests with a lower value are served first
+     */
+    public void getBitmap(IImage image,
+                          LoadedCallback imageLoadedRunnable,
+                          int tag, int priority) {
+        if (mDecodeThreads == null) {
             start();
         }
         synchronized (mQueue) {
-            WorkItem w = new WorkItem(image, imageLoadedRunnable, tag);
-            mQueue.add(w);
-            mQueue.notifyAll();
+            WorkItem w = new WorkItem(image, imageLoadedRunnable, tag, priority);
+            // Insert before the first item with the same or a larger
+            // priority value, so the most recent request goes first
+            WorkItem next = mQueue.mNext;
+            while (next != mQueue && next.mPriority < priority) {
+                next = next.mNext;
+            }
+            w.insertBefore(next);
+            mQueueSize++;
+            mIndex.put(image, w);
+            mQueue.notify();
         }
     }
 
     public boolean cancel(final IImage image) {
         synchronized (mQueue) {
-            int index = findItem(image);
-            if (index >= 0) {
-                mQueue.remove(index);
+            WorkItem w = mIndex.remove(image);
+            if (w != null) {
+                w.unlink();
+                mQueueSize--;
                 return true;
             } else {
                 return false;
@@ -52,43 +80,73 @@ public class ImageLoader {
         }
     }
 
-    // The caller should hold mQueue lock.
-    private int findItem(IImage image) {
-        for (int i = 0; i < mQueue.size(); i++) {
-            if (mQueue.get(i).mImage == image) {
-                return i;
-            }
-        }
-        return -1;
-    }
-
     // Clear the queue. Returns an array of tags that were in the queue.
     public int[] clearQueue() {
         synchronized (mQueue) {
-            int n = mQueue.size();
-            int[] tags = new int[n];
-            for (int i = 0; i < n; i++) {
-                tags[i] = mQueue.get(i).mTag;
+            int[] tags = new int[mQueueSize];
+            int i = 0;
+            for (WorkItem w = mQueue.mNext; w != mQueue; w = w.mNext) {
+                tags[i++] = w.mTag;
             }
-            mQueue.clear();
+            mQueue.mNext = mQueue.mPrev = mQueue;
+            mQueueSize = 0;
+            mIndex.clear();
             return tags;
         }
     }
 
+    /**
+     * @return the number of images decoded in parallel
+     */
+    public int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    // The caller should hold mQueue lock.
+    private WorkItem takeItem() {
+        WorkItem w = mQueue.mNext;
+        w.unlink();
+        mQueueSize--;
+        if (mIndex.get(w.mImage) == w) {
+            mIndex.remove(w.mImage);
+        }
+        return w;
+    }
+
     private static class WorkItem {
         IImage mImage;
         LoadedCallback mOnLoadedRunnable;
         int mTag;
+        int mPriority;
+        WorkItem mPrev = this;
+        WorkItem mNext = this;
 
-        WorkItem(IImage image, LoadedCallback onLoadedRunnable, int tag) {
+        WorkItem(IImage image, LoadedCallback onLoadedRunnable, int tag,
+                int priority) {
             mImage = image;
             mOnLoadedRunnable = onLoadedRunnable;
             mTag = tag;
+            mPriority = priority;
+        }
+
+        void insertBefore(WorkItem next) {
+            mNext = next;
+            mPrev = next.mPrev;
+            mPrev.mNext = this;
+            next.mPrev = this;
+        }
+
+        void unlink() {
+            mPrev.mNext = mNext;
+            mNext.mPrev = mPrev;
+            mPrev = mNext = this;
         }
     }
 
     public ImageLoader(ContentResolver cr, Handler handler) {
         mCr = cr;
+        mWorkerCount = Math.max(1, Math.min(MAX_WORKERS,
+                Runtime.getRuntime().availableProcessors()));
         start();
     }
 
@@ -104,8 +162,8 @@ public class ImageLoader {
                     if (mDone) {
                         break;
                     }
-                    if (!mQueue.isEmpty()) {
-                        workItem = mQueue.remove(0);
+                    if (mQueueSize > 0) {
+                        workItem = takeItem();
                     } else {
                         try {
                             mQueue.wait();
@@ -126,15 +184,19 @@ public class ImageLoader {
     }
 
     private void start() {
-        if (mDecodeThread != null) {
+        if (mDecodeThreads != null) {
             return;
         }
 
         mDone = false;
-        Thread t = new Thread(new WorkerThread());
-        t.setName("image-loader");
-        mDecodeThread = t;
-        t.start();
+        Thread[] threads = new Thread[mWorkerCount];
+        for (int i = 0; i < threads.length; i++) {
+            Thread t = new Thread(new WorkerThread());
+            t.setName("image-loader-" + i);
+            threads[i] = t;
+            t.start();
+        }
+        mDecodeThreads = threads;
     }
 
     public void stop() {
@@ -142,15 +204,18 @@ public class ImageLoader {
             mDone = true;
             mQueue.notifyAll();
         }
-        if (mDecodeThread != null) {
+        if (mDecodeThreads != null) {
             try {
-                Thread t = mDecodeThread;
-                BitmapManager.instance().cancelThreadDecoding(t, mCr);
-                t.join();
-                mDecodeThread = null;
+                for (Thread t : mDecodeThreads) {
+                    BitmapManager.instance().cancelThreadDecoding(t, mCr);
+                }
+                for (Thread t : mDecodeThreads) {
+                    t.join();
+                }
+                mDecodeThreads = null;
             } catch (InterruptedException ex) {
                 // so now what?
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -7,7 +7,7 @@
 package com.wingufile.wingudroid2.gallery;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 
 import android.app.Dialog;
 import android.app.ProgressDialog;
@@ -28,7 +28,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
-import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.Window;
@@ -42,6 +41,7 @@ public class MultipleImageSelectionActivity extends NoSearchActivity implements
     private static final String STATE_SCROLL_POSITION = "scroll_position";
     private static final String STATE_SELECTED_INDEX = "first_index";
 
+    @SuppressWarnings("unused")
     private static final String TAG = "MultipleImageSelectionActivity";
     private static final float INVALID_POSITION = -1f;
     private ImageManager.ImageListParam mParam;
@@ -73,7 +73,10 @@ public class MultipleImageSelectionActivity extends NoSearchActivity implements
     private float mScrollPosition = INVALID_POSITION;
     private boolean mConfigurationChanged = false;
 
-    private HashSet<IImage> mMultiSelected = new HashSet<IImage>();
+    // The paths of the selected images, by image uri. The uri stays the
+    // same when the list is rebuilt with images added or removed, unlike
+    // the index, and it tells the photos from the videos of the same id.
+    private final LinkedHashMap<Uri, String> mMultiSelected = new LinkedHashMap<Uri, String>();
 
     @Override
     public void onCreate(Bundle icicle) {
@@ -130,12 +133,7 @@ public class MultipleImageSelectionActivity extends NoSearchActivity implements
 
     private void setResultAndFinish() {
         Intent result = new Intent();
-        ArrayList<String> selected = new ArrayList<String>();
-        for (IImage image : mMultiSelected) {
-            selected.add(image.getDataPath());
-        }
-
-        result.putExtra("photos", selected);
+        result.putExtra("photos", new ArrayList<String>(mMultiSelected.values()));
         setResult(RESULT_OK, result);
         finish();
     }
@@ -589,13 +587,14 @@ public class MultipleImageSelectionActivity extends NoSearchActivity implements
         mSelectionStatus.setText(status);
     }
 
-    private void toggleMultiSelected(IImage image) {
-        if (!mMultiSelected.add(image)) {
-            mMultiSelected.remove(image);
+    private void toggleMultiSelected(int index) {
+        IImage image = mAllImages.getImageAt(index);
+        if (image == null) return;
+        Uri uri = image.fullSizeImageUri();
+        if (mMultiSelected.remove(uri) == null) {
+            mMultiSelected.put(uri, image.getDataPath());
         }
 
-        Log.d(TAG, "add/remove: " + image.getDataPath());
-
         updateSelectionStatus();
         mGvs.invalidate();
     }
@@ -644,7 +643,7 @@ public class MultipleImageSelectionActivity extends NoSearchActivity implements
         // we still need the selection box to show as a "cursor".
 
         mGvs.setSelectedIndex(GridViewSpecial.INDEX_NONE);
-        toggleMultiSelected(mAllImages.getImageAt(index));
+        toggleMultiSelected(index);
     }
 
     // private class CreateContextMenuListener implements
@@ -823,7 +822,7 @@ public class MultipleImageSelectionActivity extends NoSearchActivity implements
 
         initializeMultiSelectDrawables();
 
-        if (mMultiSelected.contains(image)) {
+        if (mMultiSelected.containsKey(image.fullSizeImageUri())) {
             Drawable checkBox = mMultiSelectTrue;
             int width = checkBox.getIntrinsicWidth();
             int height = checkBox.getIntrinsicHeight();
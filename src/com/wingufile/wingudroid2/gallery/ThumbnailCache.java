@@ -0,0 +1,215 @@
+package com.wingufile.wingudroid2.gallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.wingufile.wingudroid2.SeadroidApplication;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches the micro thumbnails of the image picker, already rotated, so that
+ * reopening the picker does not ask MediaStore for them again.
+ *
+ * There are two tiers: bitmaps in memory, bounded by their size in bytes,
+ * and JPEG files in the app cache dir. Entries are keyed by image id, date
+ * modified and orientation, so an edited or rotated image gets a new
+ * thumbnail.
+ *
+ * The callers own the bitmaps they get and may recycle them, so get()
+ * returns a copy of the cached bitmap.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    private static final String DIR_NAME = "thumbs";
+    private static final long MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_DISK_FILES = 3000;
+    // Files written between two trims of the dir
+    private static final int TRIM_INTERVAL = 100;
+    // A temporary file older than this has been left by a killed write
+    private static final long STALE_TMP_MILLIS = 60 * 1000;
+    private static final int JPEG_QUALITY = 90;
+
+    private static ThumbnailCache sInstance;
+
+    public static synchronized ThumbnailCache instance() {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache();
+        }
+        return sInstance;
+    }
+
+    // Access ordered, the eldest entry is the least recently used one.
+    // Guarded by this.
+    private final LinkedHashMap<String, Bitmap> mMemory =
+            new LinkedHashMap<String, Bitmap>(64, 0.75f, true);
+    private long mMemoryBytes;
+    private final long mMaxMemoryBytes;
+    private final File mDir;
+    private final AtomicInteger mWritesSinceTrim = new AtomicInteger();
+    private final Object mTrimLock = new Object();
+
+    private ThumbnailCache() {
+        mMaxMemoryBytes = Math.min(MAX_MEMORY_BYTES,
+                Runtime.getRuntime().maxMemory() / 16);
+        mDir = new File(SeadroidApplication.getAppContext().getCacheDir(),
+                DIR_NAME);
+        mDir.mkdirs();
+        trimDisk();
+    }
+
+    public static String key(long id, long dateModified, int orientation) {
+        return id + "-" + dateModified + "-" + orientation;
+    }
+
+    /**
+     * @return a copy of the cached thumbnail, or null if it is not cached
+     */
+    public Bitmap get(String key) {
+        synchronized (this) {
+            // copied under the lock, it could be recycled once evicted
+            Bitmap b = mMemory.get(key);
+            if (b != null) {
+                return b.copy(b.getConfig(), false);
+            }
+        }
+
+        File file = new File(mDir, key + ".jpg");
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap b = BitmapFactory.decodeFile(file.getPath());
+        if (b == null) {
+            file.delete();
+            return null;
+        }
+        // so that trimDisk() keeps the files in use
+        file.setLastModified(System.currentTimeMillis());
+        Bitmap copy = b.copy(b.getConfig(), false);
+        if (copy != null) {
+            putInMemory(key, copy);
+        }
+        return b;
+    }
+
+    /**
+     * Cache a thumbnail. The caller keeps the ownership of the bitmap.
+     */
+    public void put(String key, Bitmap b) {
+        Bitmap copy = b.copy(b.getConfig(), false);
+        if (copy == null) {
+            return;
+        }
+        putInMemory(key, copy);
+        writeToDisk(key, b);
+    }
+
+    private static long sizeOf(Bitmap b) {
+        return (long) b.getRowBytes() * b.getHeight();
+    }
+
+    private synchronized void putInMemory(String key, Bitmap b) {
+        Bitmap old = mMemory.put(key, b);
+        mMemoryBytes += sizeOf(b);
+        if (old != null) {
+            mMemoryBytes -= sizeOf(old);
+            old.recycle();
+        }
+
+        Iterator<Map.Entry<String, Bitmap>> it = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && it.hasNext()) {
+            Bitmap eldest = it.next().getValue();
+            if (eldest == b) {
+                break;
+            }
+            it.remove();
+            mMemoryBytes -= sizeOf(eldest);
+            eldest.recycle();
+        }
+    }
+
+    private void writeToDisk(String key, Bitmap b) {
+        File file = new File(mDir, key + ".jpg");
+        // Written under another name first, a reader never sees a partial file
+        File tmp = new File(mDir, key + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            b.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            } else if (mWritesSinceTrim.incrementAndGet() >= TRIM_INTERVAL) {
+                mWritesSinceTrim.set(0);
+                trimDisk();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to save thumbnail " + key, e);
+            tmp.delete();
+        } finally {
+            Util.closeSilently(out);
+        }
+    }
+
+    private static class DiskEntry {
+        final File file;
+        final long lastModified;
+
+        DiskEntry(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    /**
+     * Delete the least recently used files over {@link #MAX_DISK_FILES}, and
+     * the temporary files left by writes which did not finish
+     */
+    private void trimDisk() {
+        synchronized (mTrimLock) {
+            File[] files = mDir.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            long staleBefore = System.currentTimeMillis() - STALE_TMP_MILLIS;
+            ArrayList<DiskEntry> entries = new ArrayList<DiskEntry>(files.length);
+            for (File file : files) {
+                // the dates are read once, not on each comparison
+                DiskEntry entry = new DiskEntry(file);
+                if (file.getName().endsWith(".tmp")) {
+                    if (entry.lastModified < staleBefore) {
+                        file.delete();
+                    }
+                } else {
+                    entries.add(entry);
+                }
+            }
+            if (entries.size() <= MAX_DISK_FILES) {
+                return;
+            }
+
+            Collections.sort(entries, new Comparator<DiskEntry>() {
+                public int compare(DiskEntry a, DiskEntry b) {
+                    long diff = a.lastModified - b.lastModified;
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            for (int i = 0; i < entries.size() - MAX_DISK_FILES; i++) {
+                entries.get(i).file.delete();
+            }
+        }
+    }
+}
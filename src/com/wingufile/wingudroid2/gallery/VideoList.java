@@ -38,6 +38,15 @@ public class VideoList extends BaseImageList {
         return cursor.getLong(INDEX_ID);
     }
 
+    @Override
+    protected long getDateTaken(Cursor cursor) {
+        long dateTaken = cursor.getLong(INDEX_DATE_TAKEN);
+        if (dateTaken == 0) {
+            dateTaken = cursor.getLong(INDEX_DATE_MODIFIED) * 1000;
+        }
+        return dateTaken;
+    }
+
     @Override
     protected BaseImage loadImageFromCursor(Cursor cursor) {
         long id = cursor.getLong(INDEX_ID);
@@ -24,6 +24,7 @@ import com.wingufile.wingudroid2.R;
 import com.wingufile.wingudroid2.SeafException;
 import com.wingufile.wingudroid2.Utils;
 import com.wingufile.wingudroid2.data.DataManager;
+import com.wingufile.wingudroid2.data.DirentsPrefetcher;
 import com.wingufile.wingudroid2.data.SeafDirent;
 import com.wingufile.wingudroid2.data.SeafGroup;
 import com.wingufile.wingudroid2.data.SeafItem;
@@ -43,6 +44,9 @@ public class ReposFragment extends SherlockListFragment {
     private View mListContainer;
     private TextView mErrorText;
 
+    // The repo list the adapter holds, null if it holds something else
+    private List<SeafRepo> shownRepos = null;
+
     private DataManager getDataManager() {
         return mActivity.getDataManager();
     }
@@ -84,6 +88,7 @@ public class ReposFragment extends SherlockListFragment {
         super.onActivityCreated(savedInstanceState);
         Log.d(DEBUG_TAG, "ReposFragment onActivityCreated");
         adapter = new SeafItemAdapter(mActivity);
+        shownRepos = null;
         setListAdapter(adapter);
 
         getListView().setChoiceMode(ListView.CHOICE_MODE_SINGLE);
@@ -118,6 +123,7 @@ public class ReposFragment extends SherlockListFragment {
 
     @Override
     public void onDetach() {
+        DirentsPrefetcher.getInstance().cancel();
         mActivity = null;
         Log.d(DEBUG_TAG, "ReposFragment detached");
         super.onDetach();
@@ -141,6 +147,7 @@ public class ReposFragment extends SherlockListFragment {
     }
 
     public void navToReposView(boolean forceRefresh) {
+        DirentsPrefetcher.getInstance().cancel();
         showLoading(true);
 
         // load repos in background
@@ -151,6 +158,9 @@ public class ReposFragment extends SherlockListFragment {
 
     public void navToDirectory() {
         NavContext navContext = getNavContext();
+        // the adapter is going to hold dirents
+        shownRepos = null;
+        DirentsPrefetcher.getInstance().cancel();
         showLoading(true);
         mActivity.enableUpButton();
         ConcurrentAsyncTask.execute(new LoadDirTask(getDataManager()),
@@ -189,6 +199,7 @@ public class ReposFragment extends SherlockListFragment {
                 String newPath = currentPath.endsWith("/") ?
                         currentPath + dirent.name : currentPath + "/" + dirent.name;
                 nav.setDir(newPath, dirent.id);
+                DirentsPrefetcher.getInstance().recordVisit(nav.getRepoID(), newPath);
                 refreshView();
             } else {
                 mActivity.onFileSelected(dirent);
@@ -270,8 +281,15 @@ public class ReposFragment extends SherlockListFragment {
                 return;
             }
 
+            if (rs != null && rs == shownRepos) {
+                // DataManager returns the same list if it has not changed
+                showLoading(false);
+                return;
+            }
+
             if (rs != null) {
                 //Log.d(DEBUG_TAG, "Load repos number " + rs.size());
+                shownRepos = rs;
                 adapter.clear();
                 addReposToAdapter(rs);
                 adapter.notifyChanged();
@@ -294,6 +312,7 @@ public class ReposFragment extends SherlockListFragment {
 
         adapter.clear();
         adapter.notifyChanged();
+        shownRepos = null;
 
         mErrorText.setText(msg);
         mErrorText.setVisibility(View.VISIBLE);
@@ -389,6 +408,8 @@ public class ReposFragment extends SherlockListFragment {
                     adapter.add(dirent);
                 }
                 scheduleThumbnailTask(myRepoName, myRepoID, myPath, dirents);
+                DirentsPrefetcher.getInstance().prefetch(getDataManager(), myRepoID,
+                                                         myPath, dirents);
                 adapter.notifyChanged();
                 mList.setVisibility(View.VISIBLE);
                 mEmptyView.setVisibility(View.GONE);